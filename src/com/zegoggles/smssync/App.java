@@ -8,6 +8,8 @@ public class App extends Application {
     public void onCreate() {
         super.onCreate();
         K9.app = this;
+        // pick up progress of a backup or restore which didn't finish
+        CheckpointJournal.recover(this);
         //K9.DEBUG = true;
     }
 }
@@ -0,0 +1,131 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import org.apache.james.mime4j.AbstractContentHandler;
+import org.apache.james.mime4j.BodyDescriptor;
+import org.apache.james.mime4j.EOLConvertingInputStream;
+import org.apache.james.mime4j.MimeStreamParser;
+import org.apache.james.mime4j.decoder.Base64InputStream;
+import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recycles the buffers of {@link PooledBody}s during restore, so that
+ * fetched message bodies stay in memory instead of going through a temporary
+ * file each. Bodies larger than {@link #BUFFER_SIZE} are spilled to a file
+ * in the temp directory, each of which is deleted with its body.
+ */
+class BodyPool {
+    /** Size of the pooled buffers, bodies above this are written to a temporary file. */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private final List<byte[]> mFree = new ArrayList<byte[]>();
+    private final int mMaxFree;
+    private final File mTempDirectory;
+    private int mSpilled;
+
+    /**
+     * @param maxFree the number of unused buffers to keep around
+     * @param tempDirectory where large bodies are spilled to
+     */
+    BodyPool(int maxFree, File tempDirectory) {
+        mMaxFree = maxFree;
+        mTempDirectory = tempDirectory;
+    }
+
+    synchronized PooledBody newBody() {
+        int n = mFree.size();
+        return new PooledBody(this, n > 0 ? mFree.remove(n - 1) : new byte[BUFFER_SIZE]);
+    }
+
+    synchronized void recycle(byte[] buffer) {
+        if (mFree.size() < mMaxFree) {
+            mFree.add(buffer);
+        }
+    }
+
+    /** Creates the temporary file for a body which doesn't fit into a buffer. */
+    File createSpillFile() throws IOException {
+        synchronized (this) {
+            mSpilled++;
+        }
+        return File.createTempFile("body", null, mTempDirectory);
+    }
+
+    /** Returns the number of bodies written to temporary files so far. */
+    synchronized int getSpilled() {
+        return mSpilled;
+    }
+
+    /**
+     * Parses a complete message, keeping the top-level headers and the first
+     * body part decoded in a pooled buffer.
+     */
+    Parsed parse(InputStream in) throws IOException {
+        final Parsed parsed = new Parsed();
+        MimeStreamParser parser = new MimeStreamParser();
+        parser.setContentHandler(new AbstractContentHandler() {
+            private int mDepth;
+
+            @Override
+            public void startBodyPart() {
+                mDepth++;
+            }
+
+            @Override
+            public void endBodyPart() {
+                mDepth--;
+            }
+
+            @Override
+            public void field(String field) {
+                if (mDepth > 0) return;
+                String[] header = field.split(":", 2);
+                if (header.length == 2) {
+                    parsed.headers.add(new String[] { header[0].trim(), header[1].trim() });
+                }
+            }
+
+            @Override
+            public void body(BodyDescriptor bd, InputStream is) throws IOException {
+                if (parsed.body != null) return;
+
+                InputStream decoded = is;
+                if ("quoted-printable".equalsIgnoreCase(bd.getTransferEncoding())) {
+                    decoded = new QuotedPrintableInputStream(is);
+                } else if ("base64".equalsIgnoreCase(bd.getTransferEncoding())) {
+                    decoded = new Base64InputStream(is);
+                }
+                parsed.body = newBody();
+                parsed.body.readFrom(decoded);
+            }
+        });
+        parser.parse(new EOLConvertingInputStream(in));
+        return parsed;
+    }
+
+    /** The result of {@link #parse}, not yet attached to a message. */
+    static class Parsed {
+        final List<String[]> headers = new ArrayList<String[]>();
+        PooledBody body;
+
+        void applyTo(Message message) throws MessagingException {
+            for (String[] header : headers) {
+                message.setHeader(header[0], header[1]);
+            }
+            if (body != null) {
+                message.setBody(body);
+            }
+        }
+
+        void release() {
+            if (body != null) body.release();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Append-only journal holding the max synced date while a backup or restore
+ * is running.
+ *
+ * Updating the preference directly rewrites the whole shared preferences
+ * file for every message. Instead each update is appended as a fixed size
+ * record and the file is synced in groups (every {@link #GROUP_COMMIT_RECORDS}
+ * records or {@link #GROUP_COMMIT_INTERVAL_MS}). When the run finishes the
+ * journal is compacted into {@link PrefStore#setMaxSyncedDate} and deleted.
+ * If the process dies in between, {@link #recover(Context)} picks up the last
+ * durable record.
+ *
+ * Backup and restore may run at the same time, so each has its own journal
+ * file ({@link #BACKUP}, {@link #RESTORE}). The max synced date is only ever
+ * raised when a journal is moved into the preferences.
+ */
+class CheckpointJournal {
+    static final String BACKUP = "backup";
+    static final String RESTORE = "restore";
+
+    private static final String FILE_PREFIX = "checkpoint-";
+    private static final String FILE_SUFFIX = ".journal";
+
+    static final int GROUP_COMMIT_RECORDS = 50;
+    static final long GROUP_COMMIT_INTERVAL_MS = 2000;
+
+    /** Each record is stored together with its complement to detect torn writes. */
+    private static final long CHECK = 0xFFFFFFFFFFFFFFFFL;
+
+    private final Context mContext;
+    private final String mFileName;
+    private FileOutputStream mFileOut;
+    private DataOutputStream mOut;
+    private long mWatermark;
+    private boolean mDirty;
+    private int mUncommitted;
+    private long mLastCommit;
+
+    private CheckpointJournal(Context ctx, String fileName) {
+        mContext = ctx;
+        mFileName = fileName;
+    }
+
+    /**
+     * Recovers the journal a previous run of the same kind left behind and
+     * opens a new one.
+     *
+     * @param name {@link #BACKUP} or {@link #RESTORE}
+     */
+    static CheckpointJournal open(Context ctx, String name) {
+        String fileName = FILE_PREFIX + name + FILE_SUFFIX;
+        recover(ctx, fileName);
+
+        CheckpointJournal journal = new CheckpointJournal(ctx, fileName);
+        journal.mWatermark = PrefStore.getMaxSyncedDate(ctx);
+        try {
+            journal.mFileOut = ctx.openFileOutput(fileName, Context.MODE_PRIVATE);
+            journal.mOut = new DataOutputStream(new BufferedOutputStream(journal.mFileOut));
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "could not open checkpoint journal, writing through", e);
+        }
+        journal.mLastCommit = System.currentTimeMillis();
+        return journal;
+    }
+
+    /**
+     * Recovers all journals, to be called before any backup or restore runs.
+     */
+    static void recover(Context ctx) {
+        String[] files = ctx.fileList();
+        if (files == null) return;
+        for (String fileName : files) {
+            if (fileName.startsWith(FILE_PREFIX) && fileName.endsWith(FILE_SUFFIX)) {
+                recover(ctx, fileName);
+            }
+        }
+    }
+
+    /**
+     * Moves the last durable record of an existing journal into the
+     * preferences and removes the journal.
+     */
+    private static void recover(Context ctx, String fileName) {
+        File file = ctx.getFileStreamPath(fileName);
+        if (file == null || !file.exists()) return;
+
+        long recovered = PrefStore.DEFAULT_MAX_SYNCED_DATE;
+        boolean found = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                long date = in.readLong();
+                if ((in.readLong() ^ CHECK) != date) break;
+                recovered = date;
+                found = true;
+            }
+        } catch (EOFException e) {
+            // a torn last record ends the journal
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "error reading checkpoint journal", e);
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        if (found) {
+            Log.i(Consts.TAG, "Recovered max synced date " + recovered + " from " + fileName);
+            raiseMaxSyncedDate(ctx, recovered);
+        }
+        ctx.deleteFile(fileName);
+    }
+
+    synchronized long getWatermark() {
+        return mWatermark;
+    }
+
+    /**
+     * Records a new max synced date. The record is durable after the next
+     * group commit.
+     */
+    synchronized void record(long maxSyncedDate) {
+        mWatermark = maxSyncedDate;
+        mDirty = true;
+        if (mOut == null) {
+            PrefStore.setMaxSyncedDate(mContext, maxSyncedDate);
+            return;
+        }
+        try {
+            mOut.writeLong(maxSyncedDate);
+            mOut.writeLong(maxSyncedDate ^ CHECK);
+            if (++mUncommitted >= GROUP_COMMIT_RECORDS ||
+                System.currentTimeMillis() - mLastCommit >= GROUP_COMMIT_INTERVAL_MS) {
+                commit();
+            }
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "error writing checkpoint journal, writing through", e);
+            closeQuietly();
+            PrefStore.setMaxSyncedDate(mContext, maxSyncedDate);
+        }
+    }
+
+    private void commit() throws IOException {
+        mOut.flush();
+        mFileOut.getFD().sync();
+        mUncommitted = 0;
+        mLastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * Writes the final watermark to the preferences and deletes the journal.
+     */
+    synchronized void compact() {
+        if (mDirty) {
+            raiseMaxSyncedDate(mContext, mWatermark);
+        }
+        closeQuietly();
+        mContext.deleteFile(mFileName);
+    }
+
+    /** The other journal may have moved the date further in the meantime. */
+    private static void raiseMaxSyncedDate(Context ctx, long maxSyncedDate) {
+        synchronized (CheckpointJournal.class) {
+            if (!PrefStore.isMaxSyncedDateSet(ctx) || maxSyncedDate > PrefStore.getMaxSyncedDate(ctx)) {
+                PrefStore.setMaxSyncedDate(ctx, maxSyncedDate);
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        if (mOut != null) {
+            try { mOut.close(); } catch (IOException ignored) {}
+            mOut = null;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.zegoggles.smssync;
+
+import com.jcraft.jzlib.ZInputStream;
+import com.jcraft.jzlib.ZOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures a connection using COMPRESS=DEFLATE (RFC 4978): the number of
+ * bytes before and after compression in both directions, and the time spent
+ * deflating and inflating.
+ *
+ * K-9 negotiates compression after login and stacks jzlib streams on top of
+ * the socket streams. {@link RawImapConnection#meterCompression()} puts a
+ * timing stream above and below each jzlib stream; the time spent in the
+ * jzlib stream minus the time spent in the socket stream beneath it is the
+ * cost of compression.
+ */
+class CompressionMeter {
+    private final ZOutputStream mDeflater;
+    private final ZInputStream mInflater;
+
+    private long mDeflateNanos, mInflateNanos;
+    private long mDeflatedIn, mDeflatedOut, mInflatedIn, mInflatedOut;
+
+    /** Deflater totals at the time it was closed, it can't be asked afterwards */
+    private boolean mClosed;
+    private long mClosedIn, mClosedOut;
+
+    CompressionMeter(ZOutputStream deflater, ZInputStream inflater) {
+        mDeflater = deflater;
+        mInflater = inflater;
+    }
+
+    /** Compression totals of several connections. */
+    static class Totals {
+        long sent, sentCompressed, received, receivedCompressed;
+        long deflateNanos, inflateNanos;
+
+        /** Adds what the meter measured since it was last added. */
+        void add(CompressionMeter meter) {
+            meter.drainTo(this);
+        }
+
+        boolean isEmpty() {
+            return sent == 0 && received == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "sent " + sent + " bytes as " + sentCompressed + " (" + percent(sentCompressed, sent) + "%), " +
+                   "received " + received + " bytes as " + receivedCompressed +
+                   " (" + percent(receivedCompressed, received) + "%), " +
+                   (deflateNanos / 1000000) + "ms deflating, " + (inflateNanos / 1000000) + "ms inflating";
+        }
+
+        private static String percent(long part, long total) {
+            long permille = total > 0 ? part * 1000 / total : 0;
+            return (permille / 10) + "." + (permille % 10);
+        }
+    }
+
+    private synchronized void drainTo(Totals totals) {
+        long deflatedIn = mClosed ? mClosedIn : mDeflater.getTotalIn();
+        long deflatedOut = mClosed ? mClosedOut : mDeflater.getTotalOut();
+        long inflatedIn = mInflater.getTotalIn(), inflatedOut = mInflater.getTotalOut();
+
+        totals.sent += deflatedIn - mDeflatedIn;
+        totals.sentCompressed += deflatedOut - mDeflatedOut;
+        totals.received += inflatedOut - mInflatedOut;
+        totals.receivedCompressed += inflatedIn - mInflatedIn;
+        totals.deflateNanos += mDeflateNanos;
+        totals.inflateNanos += mInflateNanos;
+
+        mDeflatedIn = deflatedIn;
+        mDeflatedOut = deflatedOut;
+        mInflatedIn = inflatedIn;
+        mInflatedOut = inflatedOut;
+        mDeflateNanos = mInflateNanos = 0;
+    }
+
+    private synchronized void closing() {
+        if (mClosed) return;
+        mClosedIn = mDeflater.getTotalIn();
+        mClosedOut = mDeflater.getTotalOut();
+        mClosed = true;
+    }
+
+    private synchronized void deflating(long nanos) {
+        mDeflateNanos += nanos;
+    }
+
+    private synchronized void inflating(long nanos) {
+        mInflateNanos += nanos;
+    }
+
+    /** Wraps the deflater, counting the time spent in it. */
+    OutputStream aboveDeflater(OutputStream out) {
+        return new TimedOutputStream(out, 1);
+    }
+
+    /** Wraps the stream beneath the deflater, whose time doesn't count. */
+    OutputStream belowDeflater(OutputStream out) {
+        return new TimedOutputStream(out, -1);
+    }
+
+    /** Wraps the inflater, counting the time spent in it. */
+    InputStream aboveInflater(InputStream in) {
+        return new TimedInputStream(in, 1);
+    }
+
+    /** Wraps the stream beneath the inflater, whose time doesn't count. */
+    InputStream belowInflater(InputStream in) {
+        return new TimedInputStream(in, -1);
+    }
+
+    class TimedOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final int mSign;
+
+        TimedOutputStream(OutputStream out, int sign) {
+            mOut = out;
+            mSign = sign;
+        }
+
+        CompressionMeter getMeter() {
+            return CompressionMeter.this;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long started = System.nanoTime();
+            try {
+                mOut.write(b);
+            } finally {
+                deflating(mSign * (System.nanoTime() - started));
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long started = System.nanoTime();
+            try {
+                mOut.write(b, off, len);
+            } finally {
+                deflating(mSign * (System.nanoTime() - started));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long started = System.nanoTime();
+            try {
+                mOut.flush();
+            } finally {
+                deflating(mSign * (System.nanoTime() - started));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mSign > 0) {
+                closing();
+            }
+            mOut.close();
+        }
+    }
+
+    class TimedInputStream extends InputStream {
+        private final InputStream mIn;
+        private final int mSign;
+
+        TimedInputStream(InputStream in, int sign) {
+            mIn = in;
+            mSign = sign;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long started = System.nanoTime();
+            try {
+                return mIn.read();
+            } finally {
+                inflating(mSign * (System.nanoTime() - started));
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long started = System.nanoTime();
+            try {
+                return mIn.read(b, off, len);
+            } finally {
+                inflating(mSign * (System.nanoTime() - started));
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mIn.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
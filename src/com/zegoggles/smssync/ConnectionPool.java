@@ -0,0 +1,272 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Process-wide pool of open backup folders, each holding an authenticated
+ * IMAP connection with the folder already selected.
+ *
+ * Opening a folder from scratch takes a TCP and TLS handshake, a login and
+ * several commands to check, create and select the folder. Syncs triggered
+ * by incoming messages run every few minutes, so instead of closing their
+ * connections when done they are kept here for the next sync. While idle
+ * they get a NOOP every {@link #KEEPALIVE_INTERVAL} so the server doesn't
+ * time them out, and they are logged out after {@link #MAX_IDLE_TIME}.
+ * A connection which has been idle for a while is checked with a NOOP
+ * before it is handed out again.
+ *
+ * Connections are tied to the server, account and folder they were opened
+ * for; changing any of these drops the pooled connections.
+ *
+ * A connection can also be opened ahead of an expected sync with
+ * {@link #warmUp}, it is logged out if the sync doesn't take it in time.
+ */
+class ConnectionPool {
+    /** Interval between NOOPs on idle connections. */
+    static final long KEEPALIVE_INTERVAL = 5 * 60 * 1000;
+
+    /** Idle connections are logged out after this time. */
+    static final long MAX_IDLE_TIME = 15 * 60 * 1000;
+
+    /** Connections checked more recently than this are handed out without a NOOP. */
+    static final long HEALTH_CHECK_INTERVAL = 30 * 1000;
+
+    /** Maximum number of idle connections kept. */
+    static final int MAX_IDLE = 4;
+
+    /** Time a warmed up connection is kept beyond the expected start of the sync. */
+    static final long WARM_UP_GRACE = 60 * 1000;
+
+    private static class Idle {
+        final ImapStore.BackupFolder folder;
+        final long since;
+        final long expires;
+        long checked;
+
+        Idle(ImapStore.BackupFolder folder, long now, long expires) {
+            this.folder = folder;
+            this.since = now;
+            this.expires = expires;
+            this.checked = now;
+        }
+    }
+
+    /** Most recently released first */
+    private static final LinkedList<Idle> sIdle = new LinkedList<Idle>();
+    private static String sKey;
+    private static Timer sTimer;
+    private static boolean sWarmingUp;
+
+    private ConnectionPool() {}
+
+    /**
+     * Returns an open backup folder, reusing an idle connection if there is
+     * a working one for the current settings.
+     */
+    static ImapStore.BackupFolder acquire(Context ctx) throws MessagingException {
+        String key = key(ctx);
+        while (true) {
+            Idle idle;
+            synchronized (ConnectionPool.class) {
+                if (!key.equals(sKey)) {
+                    disconnectAll();
+                    sKey = key;
+                }
+                idle = sIdle.poll();
+            }
+            if (idle == null) break;
+
+            if (System.currentTimeMillis() - idle.checked < HEALTH_CHECK_INTERVAL || idle.folder.noop()) {
+                Log.d(Consts.TAG, "reusing connection idle for " +
+                        (System.currentTimeMillis() - idle.since) + "ms");
+                return idle.folder;
+            }
+            Log.d(Consts.TAG, "dropping dead connection");
+        }
+        return new ImapStore(ctx).getBackupFolder();
+    }
+
+    /**
+     * Returns a folder to the pool. If <code>reuse</code> is false, because
+     * the connection may be in an unknown state after an error, or the pool
+     * is full, the connection is logged out instead.
+     */
+    static void release(ImapStore.BackupFolder folder, boolean reuse) {
+        if (reuse && folder.isOpen()) {
+            synchronized (ConnectionPool.class) {
+                if (sIdle.size() < MAX_IDLE) {
+                    long now = System.currentTimeMillis();
+                    sIdle.addFirst(new Idle(folder, now, now + MAX_IDLE_TIME));
+                    scheduleKeepalive();
+                    return;
+                }
+            }
+        }
+        folder.disconnect();
+    }
+
+    /**
+     * Opens a connection in the background for a sync expected to start in
+     * <code>expectedIn</code> ms, unless there already is an idle one. If
+     * the sync hasn't taken it {@link #WARM_UP_GRACE} after that, it is
+     * logged out again. Does nothing if a warm up is already running. The
+     * device is kept awake until the login is done.
+     */
+    static void warmUp(final Context ctx, long expectedIn) {
+        synchronized (ConnectionPool.class) {
+            if (sWarmingUp) return;
+            sWarmingUp = true;
+        }
+        PowerManager pMgr = (PowerManager) ctx.getSystemService(Context.POWER_SERVICE);
+        final PowerManager.WakeLock wakeLock = pMgr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                "ConnectionPool warm up");
+        wakeLock.acquire();
+
+        final Context appContext = ctx.getApplicationContext();
+        final long expires = System.currentTimeMillis() + expectedIn + WARM_UP_GRACE;
+        new Thread("ConnectionPool-warmup") {
+            @Override
+            public void run() {
+                try {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    openWarmConnection(appContext, expires);
+                } finally {
+                    synchronized (ConnectionPool.class) {
+                        sWarmingUp = false;
+                    }
+                    wakeLock.release();
+                }
+            }
+        }.start();
+    }
+
+    private static void openWarmConnection(Context ctx, final long expires) {
+        String key = key(ctx);
+        synchronized (ConnectionPool.class) {
+            if (key.equals(sKey) && !sIdle.isEmpty()) return;
+        }
+
+        long started = System.currentTimeMillis();
+        ImapStore.BackupFolder folder;
+        try {
+            folder = new ImapStore(ctx).getBackupFolder();
+        } catch (MessagingException e) {
+            Log.w(Consts.TAG, "warm up failed", e);
+            return;
+        } catch (RuntimeException e) {
+            Log.w(Consts.TAG, "warm up failed", e);
+            return;
+        }
+        Log.d(Consts.TAG, "warmed up connection in " + (System.currentTimeMillis() - started) + "ms");
+
+        synchronized (ConnectionPool.class) {
+            if (!key.equals(sKey)) {
+                disconnectAll();
+                sKey = key;
+            }
+            if (sIdle.size() < MAX_IDLE) {
+                sIdle.addFirst(new Idle(folder, System.currentTimeMillis(), expires));
+                scheduleKeepalive();
+                // drop it soon after the sync should have started
+                sTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        keepalive();
+                    }
+                }, Math.max(0, expires - System.currentTimeMillis()));
+                return;
+            }
+        }
+        folder.disconnect();
+    }
+
+    /**
+     * Logs out all idle connections.
+     */
+    static synchronized void disconnectAll() {
+        for (Idle idle : sIdle) {
+            idle.folder.disconnect();
+        }
+        sIdle.clear();
+    }
+
+    private static synchronized void scheduleKeepalive() {
+        if (sTimer != null) return;
+
+        sTimer = new Timer("ConnectionPool", true);
+        sTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                keepalive();
+            }
+        }, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL);
+    }
+
+    /**
+     * Evicts connections idle for too long and sends a NOOP on the others.
+     * Only the connection being checked is taken out of the pool, so a sync
+     * starting at the same time still finds the others.
+     */
+    private static void keepalive() {
+        List<Idle> idle;
+        String key;
+        synchronized (ConnectionPool.class) {
+            idle = new ArrayList<Idle>(sIdle);
+            key = sKey;
+        }
+
+        for (Idle i : idle) {
+            synchronized (ConnectionPool.class) {
+                // handed out or dropped in the meantime
+                if (!sIdle.remove(i)) continue;
+            }
+
+            if (System.currentTimeMillis() >= i.expires) {
+                Log.d(Consts.TAG, "closing idle connection");
+                i.folder.disconnect();
+                continue;
+            }
+            if (!i.folder.noop()) continue;
+            i.checked = System.currentTimeMillis();
+
+            boolean kept = false;
+            synchronized (ConnectionPool.class) {
+                if (key.equals(sKey) && sIdle.size() < MAX_IDLE) {
+                    // keep the most recently released first
+                    int index = 0;
+                    while (index < sIdle.size() && sIdle.get(index).since > i.since) {
+                        index++;
+                    }
+                    sIdle.add(index, i);
+                    kept = true;
+                }
+            }
+            if (!kept) {
+                i.folder.disconnect();
+            }
+        }
+
+        synchronized (ConnectionPool.class) {
+            if (sIdle.isEmpty() && sTimer != null) {
+                sTimer.cancel();
+                sTimer = null;
+            }
+        }
+    }
+
+    private static String key(Context ctx) {
+        return PrefStore.getServerProtocol(ctx) + "://" + PrefStore.getLoginUsername(ctx) + "@" +
+                PrefStore.getServerAddress(ctx) + "/" + PrefStore.getImapFolder(ctx) +
+                " " + PrefStore.getAuthMode(ctx);
+    }
+}
@@ -2,7 +2,31 @@ package com.zegoggles.smssync;
 
 import android.content.Context;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 public interface ContactAccessor {
   /** Returns the email address of the Android phone owner, or null if not known */
   String getOwnerEmail(Context context);
+
+  /**
+   * Looks up the contacts for several phone numbers, using one query per
+   * number and a single query for all their email addresses.
+   *
+   * @return the contacts found, keyed by number. Numbers without a contact are left out.
+   */
+  Map<String, Contact> getContacts(Context context, Collection<String> numbers);
+
+  /** A contact matching a phone number. */
+  public static class Contact {
+    /** Id of the contact, used for threading. Same as the person id of the old contacts API. */
+    public String id;
+    public String name;
+    /** The number as stored in the contact */
+    public String number;
+    /** All email addresses of the contact */
+    public final List<String> emails = new ArrayList<String>();
+  }
 }
@@ -3,8 +3,30 @@ package com.zegoggles.smssync;
 import android.content.Context;
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ContactAccessorPost20 implements ContactAccessor {
+  // The raw contact id is what the old contacts API exposed as person id, so
+  // message threading stays the same as in earlier backups.
+  private static final String[] PHONE_PROJECTION = new String[] {
+      Phone.RAW_CONTACT_ID, Phone.CONTACT_ID, Phone.DISPLAY_NAME, Phone.NUMBER
+  };
+
+  private static final String[] EMAIL_PROJECTION = new String[] {
+      Email.CONTACT_ID, Email.DATA
+  };
+
   public String getOwnerEmail(Context context) {
       AccountManager mgr = AccountManager.get(context);
       for (Account acc : mgr.getAccountsByType("com.google")) {
@@ -12,4 +34,61 @@ public class ContactAccessorPost20 implements ContactAccessor {
       }
       return null;
   }
+
+  public Map<String, Contact> getContacts(Context context, Collection<String> numbers) {
+    Map<String, Contact> found = new HashMap<String, Contact>();
+    // emails are stored per aggregated contact
+    Map<String, List<Contact>> byContactId = new HashMap<String, List<Contact>>();
+
+    for (String number : numbers) {
+      Cursor c = null;
+      try {
+        c = context.getContentResolver().query(
+            Uri.withAppendedPath(Phone.CONTENT_FILTER_URI, Uri.encode(number.replaceAll("/", ""))),
+            PHONE_PROJECTION, null, null, null);
+      } catch (IllegalArgumentException e) {
+        Log.e(Consts.TAG, "Could not lookup person: " + number + " IllegalArgumentException: " + e.getMessage());
+      }
+      if (c == null) continue;
+      try {
+        if (c.moveToFirst()) {
+          Contact contact = new Contact();
+          contact.id = String.valueOf(c.getLong(c.getColumnIndex(Phone.RAW_CONTACT_ID)));
+          contact.name = c.getString(c.getColumnIndex(Phone.DISPLAY_NAME));
+          contact.number = c.getString(c.getColumnIndex(Phone.NUMBER));
+          found.put(number, contact);
+
+          String contactId = String.valueOf(c.getLong(c.getColumnIndex(Phone.CONTACT_ID)));
+          List<Contact> contacts = byContactId.get(contactId);
+          if (contacts == null) {
+            contacts = new ArrayList<Contact>(1);
+            byContactId.put(contactId, contacts);
+          }
+          contacts.add(contact);
+        }
+      } finally {
+        c.close();
+      }
+    }
+
+    if (!byContactId.isEmpty()) {
+      Cursor c = context.getContentResolver().query(Email.CONTENT_URI, EMAIL_PROJECTION,
+          Email.CONTACT_ID + " IN (" + TextUtils.join(",", byContactId.keySet()) + ")", null, null);
+      if (c != null) {
+        try {
+          int indexContact = c.getColumnIndex(Email.CONTACT_ID);
+          int indexData = c.getColumnIndex(Email.DATA);
+          while (c.moveToNext()) {
+            List<Contact> contacts = byContactId.get(String.valueOf(c.getLong(indexContact)));
+            String email = c.getString(indexData);
+            if (contacts == null || email == null) continue;
+            for (Contact contact : contacts) contact.emails.add(email);
+          }
+        } finally {
+          c.close();
+        }
+      }
+    }
+    return found;
+  }
 }
@@ -1,9 +1,83 @@
 package com.zegoggles.smssync;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.provider.Contacts.ContactMethods;
+import android.provider.Contacts.People;
+import android.provider.Contacts.Phones;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ContactAccessorPre20 implements ContactAccessor {
+  private static final String[] PHONE_PROJECTION = new String[] {
+      Phones.PERSON_ID, People.NAME, Phones.NUMBER
+  };
+
+  private static final String[] EMAIL_PROJECTION = new String[] {
+      ContactMethods.PERSON_ID, ContactMethods.DATA
+  };
+
   public String getOwnerEmail(Context context) {
     return null;
   }
+
+  public Map<String, Contact> getContacts(Context context, Collection<String> numbers) {
+    Map<String, Contact> found = new HashMap<String, Contact>();
+    Map<String, Contact> byId = new HashMap<String, Contact>();
+
+    for (String number : numbers) {
+      Cursor c = null;
+      try {
+        //filter slashes out
+        c = context.getContentResolver().query(
+            Uri.withAppendedPath(Phones.CONTENT_FILTER_URL, number.replaceAll("/", "")),
+            PHONE_PROJECTION, null, null, null);
+      } catch (IllegalArgumentException e) {
+        Log.e(Consts.TAG, "Could not lookup person, because phone number includes illegals chars: " + number + " IllegalArgumentException: " + e.getMessage());
+      }
+      if (c == null) continue;
+      try {
+        if (c.moveToFirst()) {
+          Contact contact = new Contact();
+          contact.id = String.valueOf(c.getLong(c.getColumnIndex(Phones.PERSON_ID)));
+          contact.name = c.getString(c.getColumnIndex(People.NAME));
+          contact.number = c.getString(c.getColumnIndex(Phones.NUMBER));
+
+          Contact known = byId.get(contact.id);
+          if (known != null) {
+            contact = known;
+          } else {
+            byId.put(contact.id, contact);
+          }
+          found.put(number, contact);
+        }
+      } finally {
+        c.close();
+      }
+    }
+
+    if (!byId.isEmpty()) {
+      Cursor c = context.getContentResolver().query(ContactMethods.CONTENT_EMAIL_URI, EMAIL_PROJECTION,
+          ContactMethods.PERSON_ID + " IN (" + TextUtils.join(",", byId.keySet()) + ")", null, null);
+      if (c != null) {
+        try {
+          int indexPerson = c.getColumnIndex(ContactMethods.PERSON_ID);
+          int indexData = c.getColumnIndex(ContactMethods.DATA);
+          while (c.moveToNext()) {
+            Contact contact = byId.get(String.valueOf(c.getLong(indexPerson)));
+            String email = c.getString(indexData);
+            if (contact != null && email != null) contact.emails.add(email);
+          }
+        } finally {
+          c.close();
+        }
+      }
+    }
+    return found;
+  }
 }
@@ -0,0 +1,147 @@
+package com.zegoggles.smssync;
+
+import android.database.Cursor;
+import android.os.Process;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.CursorToMessage.ConversionResult;
+import com.zegoggles.smssync.CursorToMessage.EncodedMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Converts the pages of an {@link SmsScanner} into batches of messages on a
+ * separate thread, so that contact lookups and MIME construction for the
+ * next batches happen while the current one is being uploaded.
+ *
+ * Batches are handed over through a bounded queue in scan order, which
+ * means the consumer still sees them sorted by date and can advance the
+ * max synced date after each one. A page is fully converted and its cursor
+ * closed before any of its batches are handed over.
+ */
+class ConversionPipeline {
+    /** Number of converted batches which may wait for upload. */
+    static final int QUEUE_DEPTH = 4;
+
+    private final CursorToMessage mConverter;
+    private final SmsScanner mScanner;
+    private final int mBatchSize;
+    private final int mMaxItems;
+    private final BlockingQueue<ConversionResult> mQueue =
+            new ArrayBlockingQueue<ConversionResult>(QUEUE_DEPTH);
+
+    private volatile boolean mStopped;
+    private volatile Exception mError;
+    private Thread mThread;
+
+    /**
+     * @param maxItems the total number of rows to convert
+     */
+    ConversionPipeline(CursorToMessage converter, SmsScanner scanner, int batchSize, int maxItems) {
+        mConverter = converter;
+        mScanner = scanner;
+        mBatchSize = batchSize;
+        mMaxItems = maxItems;
+    }
+
+    void start() {
+        mThread = new Thread("ConversionPipeline") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                produce();
+            }
+        };
+        mThread.start();
+    }
+
+    private void produce() {
+        int converted = 0, sequence = 0;
+        List<ConversionResult> batches = new ArrayList<ConversionResult>();
+        try {
+            Cursor page;
+            while (!mStopped && converted < mMaxItems && (page = mScanner.nextPage()) != null) {
+                try {
+                    mConverter.resolveContacts(page);
+                    while (!mStopped && converted < mMaxItems) {
+                        ConversionResult result = mConverter.cursorToMessageArray(page,
+                                Math.min(mBatchSize, mMaxItems - converted));
+                        if (result.messageList.isEmpty()) break;
+
+                        converted += result.messageList.size();
+                        result.sequence = sequence++;
+                        batches.add(result);
+                    }
+                } finally {
+                    page.close();
+                }
+
+                for (ConversionResult result : batches) {
+                    mQueue.put(result);
+                }
+                batches.clear();
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (MessagingException e) {
+            mError = e;
+        } catch (RuntimeException e) {
+            mError = e;
+        }
+
+        Log.d(Consts.TAG, "ConversionPipeline: " + mConverter.getStats());
+        try {
+            mQueue.put(endOfStream());
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Returns the next batch in cursor order, blocking until it is converted.
+     * An empty batch signals that all items have been converted. Safe to call
+     * from several threads.
+     *
+     * @throws MessagingException if the conversion failed
+     */
+    ConversionResult take() throws MessagingException, InterruptedException {
+        ConversionResult result = mQueue.take();
+        if (result.messageList.isEmpty()) {
+            // keep returning the end marker on subsequent calls
+            mQueue.offer(result);
+
+            Exception error = mError;
+            if (error instanceof MessagingException) {
+                throw (MessagingException) error;
+            } else if (error != null) {
+                throw new MessagingException("error converting messages", error);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops conversion and waits for the producer thread to finish.
+     */
+    void stop() {
+        mStopped = true;
+        if (mThread == null) return;
+
+        mThread.interrupt();
+        mQueue.clear();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(Consts.TAG, "interrupted while waiting for conversion to finish");
+        }
+    }
+
+    private static ConversionResult endOfStream() {
+        ConversionResult result = new ConversionResult();
+        result.maxDate = PrefStore.DEFAULT_MAX_SYNCED_DATE;
+        result.messageList = new ArrayList<EncodedMessage>(0);
+        return result;
+    }
+}
@@ -15,43 +15,32 @@
 
 package com.zegoggles.smssync;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.security.MessageDigest;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
-import android.provider.Contacts.ContactMethods;
-import android.provider.Contacts.People;
-import android.provider.Contacts.Phones;
 import android.util.Log;
 
 import com.fsck.k9.mail.Address;
-import com.fsck.k9.mail.Flag;
-import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
-import com.fsck.k9.mail.Message.RecipientType;
-import com.fsck.k9.mail.internet.MimeMessage;
-import com.fsck.k9.mail.internet.TextBody;
 
 import org.apache.james.mime4j.codec.EncoderUtil;
 
 public class CursorToMessage {
 
-    private static final String REFERENCE_UID_TEMPLATE = "<%s.%s@sms-backup-plus.local>";
-    private static final String MSG_ID_TEMPLATE = "<%s@sms-backup-plus.local>";
+    private static final String LOCAL_DOMAIN_SUFFIX = "@sms-backup-plus.local>";
 
-    private static final String[] PHONE_PROJECTION = new String[] {
-            Phones.PERSON_ID, People.NAME, Phones.NUMBER
-    };
-
-    private static final String[] EMAIL_PROJECTION = new String[] {
-        ContactMethods.DATA
-    };
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     private static final String UNKNOWN_NUMBER = "unknown_number";
 
@@ -59,10 +48,15 @@ public class CursorToMessage {
 
     private static final String UNKNOWN_PERSON = "unknown.person";
 
-    private static final int MAX_PEOPLE_CACHE_SIZE = 100;
+    private static final int MAX_PEOPLE_CACHE_SIZE = 500;
+
+    /** Cached in place of a record for addresses without a contact. */
+    private static final PersonRecord UNKNOWN_RECORD = new PersonRecord();
 
     private Context mContext;
 
+    private ContactAccessor mContacts;
+
     private Address mUserAddress;
 
     private Map<String, PersonRecord> mPeopleCache;
@@ -71,6 +65,24 @@ public class CursorToMessage {
 
     private boolean mMarkAsRead = false;
 
+    // Header values which stay the same for the whole run
+    private String mReferencePrefix;
+    private String mBackupTime;
+    private String mVersion;
+
+    private final Rfc822Writer mWriter = new Rfc822Writer(16 * 1024);
+
+    private MessageDigest mDigest;
+    private final StringBuilder mIdBuilder = new StringBuilder(64);
+
+    private RowReader mRow;
+
+    private long mConvertNanos;
+    private int mConvertedCount;
+
+    private int mCacheHits, mCacheMisses;
+    private long mLookupNanos;
+
     public static interface Headers {
         String ID = "X-smssync-id";
         String ADDRESS = "X-smssync-address";
@@ -87,7 +99,13 @@ public class CursorToMessage {
 
     public CursorToMessage(Context ctx, String userEmail) {
         mContext = ctx;
-        mPeopleCache = new HashMap<String, PersonRecord>();
+        mContacts = SmsSync.getContactAccessor();
+        mPeopleCache = new LinkedHashMap<String, PersonRecord>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PersonRecord> eldest) {
+                return size() > MAX_PEOPLE_CACHE_SIZE;
+            }
+        };
         mUserAddress = new Address(userEmail);
 
         mReferenceValue = PrefStore.getReferenceUid(ctx);
@@ -97,47 +115,80 @@ public class CursorToMessage {
         }
 
         mMarkAsRead = PrefStore.getMarkAsRead(ctx);
+
+        mReferencePrefix = "<" + mReferenceValue + ".";
+        mBackupTime = new Date().toGMTString();
+        mVersion = PrefStore.getVersion(ctx, true);
+        try {
+            mDigest = MessageDigest.getInstance("MD5");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public ConversionResult cursorToMessageArray(Cursor cursor, int maxEntries)
             throws MessagingException {
-        List<Message> messageList = new ArrayList<Message>(maxEntries);
+        long started = System.nanoTime();
         long maxDate = PrefStore.DEFAULT_MAX_SYNCED_DATE;
 
-        String[] columns = cursor.getColumnNames();
-        int indexDate = cursor.getColumnIndex(SmsConsts.DATE);
-        while (cursor.moveToNext()) {
-            HashMap<String, String> msgMap = new HashMap<String, String>(columns.length);
-
-            long date = cursor.getLong(indexDate);
-            if (date > maxDate) {
-                maxDate = date;
-            }
-            for (int i = 0; i < columns.length; i++) {
-                msgMap.put(columns[i], cursor.getString(i));
-            }
-            messageList.add(messageFromHashMap(msgMap));
-            if (messageList.size() == maxEntries) {
-                // Only consume up to 'maxEntries' items.
-                break;
+        if (mRow == null || !mRow.isBoundTo(cursor)) {
+            mRow = new RowReader(cursor);
+        }
+        // all messages of the batch are written into one buffer, split up below
+        int[] ends = new int[maxEntries];
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                long date = mRow.getDate();
+                if (date > maxDate) {
+                    maxDate = date;
+                }
+                writeMessage(mRow);
+                ends[count++] = mWriter.size();
+                if (count == maxEntries) {
+                    // Only consume up to 'maxEntries' items.
+                    break;
+                }
             }
+        } catch (IOException e) {
+            throw new MessagingException("error encoding message", e);
         }
-        //TODO: Be more clever and MFU or LRU people.
-        if (mPeopleCache.size() > MAX_PEOPLE_CACHE_SIZE) {
-            mPeopleCache.clear();
+
+        byte[] data = mWriter.drain();
+        List<EncodedMessage> messageList = new ArrayList<EncodedMessage>(count);
+        for (int i = 0, start = 0; i < count; start = ends[i++]) {
+            messageList.add(new EncodedMessage(data, start, ends[i] - start, mMarkAsRead));
         }
 
+        mConvertedCount += messageList.size();
+        mConvertNanos += System.nanoTime() - started;
+
         ConversionResult result = new ConversionResult();
         result.maxDate = maxDate;
         result.messageList = messageList;
         return result;
     }
 
-    private Message messageFromHashMap(HashMap<String, String> msgMap) throws MessagingException {
-        Message msg = new MimeMessage();
+    /**
+     * Returns a summary of the time spent converting messages so far, for
+     * comparing conversion cost between versions.
+     */
+    public String getStats() {
+        return "converted " + mConvertedCount + " messages in " + (mConvertNanos / 1000000) + "ms (" +
+               (mConvertedCount > 0 ? mConvertNanos / 1000 / mConvertedCount : 0) + "us/message), " +
+               "contact cache " + mCacheHits + " hits/" + mCacheMisses + " misses, " +
+               (mLookupNanos / 1000000) + "ms in lookups";
+    }
+
+    /**
+     * Writes the current row as a message to {@link #mWriter}. The header order
+     * is the one K-9's MimeMessage produced when it was used for this.
+     */
+    private void writeMessage(RowReader row) throws IOException {
+        Rfc822Writer out = mWriter;
 
         PersonRecord record = null;
-        String address = msgMap.get(SmsConsts.ADDRESS);
+        String address = row.getString(row.address);
         if (address != null) {
             address = address.trim();
             if (address.length() > 0) {
@@ -152,48 +203,46 @@ public class CursorToMessage {
             record.address = new Address(encodeLocal(address) + "@" + UNKNOWN_PERSON);
         }
 
-        msg.setSubject("SMS with " + record.name);
+        out.header("Subject", "SMS with " + record.name);
 
-        TextBody body = new TextBody(msgMap.get(SmsConsts.BODY));
-
-        int messageType = Integer.valueOf(msgMap.get(SmsConsts.TYPE));
+        int messageType = row.getType();
         if (SmsConsts.MESSAGE_TYPE_INBOX == messageType) {
             // Received message
-            msg.setFrom(record.address);
-            msg.setRecipient(RecipientType.TO, mUserAddress);
+            out.header("From", record.address.toEncodedString());
+            out.header("To", mUserAddress.toEncodedString());
         } else {
             // Sent message
-            msg.setRecipient(RecipientType.TO, record.address);
-            msg.setFrom(mUserAddress);
+            out.header("To", record.address.toEncodedString());
+            out.header("From", mUserAddress.toEncodedString());
         }
 
-        msg.setBody(body);
+        out.textBodyHeaders();
+
+        long date = row.getDate();
+        Date then = new Date(date);
+        out.dateHeader("Date", then);
+        out.header("Message-ID", createMessageId(then, address, messageType));
 
-        try {
-          Date then = new Date(Long.valueOf(msgMap.get(SmsConsts.DATE)));
-          msg.setSentDate(then);
-          msg.setInternalDate(then);
-          msg.setHeader("Message-ID", createMessageId(then, address, messageType));
-        } catch (NumberFormatException n) {
-          Log.e(Consts.TAG, "error parsing date", n);
-        }
         // Threading by person ID, not by thread ID. I think this value is more
         // stable.
-        msg.setHeader("References", String.format(REFERENCE_UID_TEMPLATE, mReferenceValue, record._id));
-        msg.setHeader(Headers.ID, msgMap.get(SmsConsts.ID));
-        msg.setHeader(Headers.ADDRESS, address);
-        msg.setHeader(Headers.TYPE, msgMap.get(SmsConsts.TYPE));
-        msg.setHeader(Headers.DATE, msgMap.get(SmsConsts.DATE));
-        msg.setHeader(Headers.THREAD_ID, msgMap.get(SmsConsts.THREAD_ID));
-        msg.setHeader(Headers.READ, msgMap.get(SmsConsts.READ));
-        msg.setHeader(Headers.STATUS, msgMap.get(SmsConsts.STATUS));
-        msg.setHeader(Headers.PROTOCOL, msgMap.get(SmsConsts.PROTOCOL));
-        msg.setHeader(Headers.SERVICE_CENTER, msgMap.get(SmsConsts.SERVICE_CENTER));
-        msg.setHeader(Headers.BACKUP_TIME, new Date().toGMTString());
-        msg.setHeader(Headers.VERSION, PrefStore.getVersion(mContext, true));
-        msg.setFlag(Flag.SEEN, mMarkAsRead);
-
-        return msg;
+        if (record.reference == null) {
+            record.reference = mReferencePrefix + record._id + LOCAL_DOMAIN_SUFFIX;
+        }
+        out.header("References", record.reference);
+        out.header(Headers.ID, row.getString(row.id));
+        out.header(Headers.ADDRESS, address);
+        out.header(Headers.TYPE, Integer.toString(messageType));
+        out.header(Headers.DATE, Long.toString(date));
+        out.header(Headers.THREAD_ID, row.getString(row.threadId));
+        out.header(Headers.READ, row.getString(row.read));
+        out.header(Headers.STATUS, row.getString(row.status));
+        out.header(Headers.PROTOCOL, row.getString(row.protocol));
+        out.header(Headers.SERVICE_CENTER, row.getString(row.serviceCenter));
+        out.header(Headers.BACKUP_TIME, mBackupTime);
+        out.header(Headers.VERSION, mVersion);
+
+        out.body(row.getString(row.body));
+        out.endMessage();
     }
 
     /**
@@ -202,99 +251,102 @@ public class CursorToMessage {
       */
     private String createMessageId(Date sent, String address, int type) {
       try {
-        MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-
-        digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
-        digest.update(address.getBytes("UTF-8"));
-        digest.update(Integer.toString(type).getBytes("UTF-8"));
-
-        StringBuilder sb = new StringBuilder();
-        for (byte b : digest.digest()) {
-          sb.append(String.format("%02x", b));
+        mDigest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
+        mDigest.update(address.getBytes("UTF-8"));
+        mDigest.update(Integer.toString(type).getBytes("UTF-8"));
+
+        StringBuilder sb = mIdBuilder;
+        sb.setLength(0);
+        sb.append('<');
+        for (byte b : mDigest.digest()) {
+          sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
         }
-        return String.format(MSG_ID_TEMPLATE, sb.toString());
+        return sb.append(LOCAL_DOMAIN_SUFFIX).toString();
       } catch (java.io.UnsupportedEncodingException e) {
         throw new RuntimeException(e);
-      } catch (java.security.NoSuchAlgorithmException e) {
-        throw new RuntimeException(e);
+      } finally {
+        mDigest.reset();
       }
     }
 
-    private PersonRecord lookupPerson(String address) {
-        if (!mPeopleCache.containsKey(address)) {
-
-            //filter slashes out
-            address = address.replaceAll("/", "");
-
-            // Look phone number
-            Uri personUri = Uri.withAppendedPath(Phones.CONTENT_FILTER_URL, address);
-            Cursor phoneCursor = null;
-            try {
-                phoneCursor = mContext.getContentResolver().query(personUri, PHONE_PROJECTION,
-                        null, null, null);
-            } catch (IllegalArgumentException e) {
-                Log.e(Consts.TAG, "Could not lookup person, because phone number includes illegals chars: " + address + " IllegalArgumentException: " + e.getMessage());
+    /**
+     * Looks up the contacts for all addresses of the rows in <code>cursor</code>
+     * which aren't cached yet, so the following conversion does not have to
+     * query the contacts provider. The cursor is left before the first row.
+     */
+    public void resolveContacts(Cursor cursor) {
+        if (mRow == null || !mRow.isBoundTo(cursor)) {
+            mRow = new RowReader(cursor);
+        }
+        Set<String> unresolved = new HashSet<String>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            String address = mRow.getString(mRow.address);
+            if (address != null) {
+                address = address.trim();
+                if (address.length() > 0 && !mPeopleCache.containsKey(address)) {
+                    unresolved.add(address);
+                }
             }
+        }
+        cursor.moveToPosition(-1);
 
-            if (null != phoneCursor && phoneCursor.moveToFirst()) {
-                int indexPersonId = phoneCursor.getColumnIndex(Phones.PERSON_ID);
-                int indexName = phoneCursor.getColumnIndex(People.NAME);
-                int indexNumber = phoneCursor.getColumnIndex(Phones.NUMBER);
-                long personId = phoneCursor.getLong(indexPersonId);
-                String name = phoneCursor.getString(indexName);
-                String number = phoneCursor.getString(indexNumber);
-                phoneCursor.close();
-
-                String primaryEmail = getEmail(number, personId);
-
-                PersonRecord record = new PersonRecord();
-                record._id = String.valueOf(personId);
-                record.name = name;
-
-                record.address = new Address(primaryEmail, encodeDisplayName(name));
-                mPeopleCache.put(address, record);
-            } else {
-                Log.v(Consts.TAG, "Looked up unknown address: " + address);
-                return null;
-            }
+        if (!unresolved.isEmpty()) {
+            mCacheMisses += unresolved.size();
+            queryPeople(unresolved);
         }
-        return mPeopleCache.get(address);
     }
 
-    private String getEmail(String number, long personId) {
-        String primaryEmail = null;
-        String selection = ContactMethods.PERSON_ID + " = ?";
-        String[] selectionArgs = new String[] { String.valueOf(personId) };
-        if (personId > 0) {
-            // Get all e-mail addresses for that person.
-            Cursor emailCursor = mContext.getContentResolver().query(
-                    ContactMethods.CONTENT_EMAIL_URI, EMAIL_PROJECTION,
-                    selection, selectionArgs, null);
-            int indexData = emailCursor.getColumnIndex(ContactMethods.DATA);
-
-            // Loop over cursor and find a Gmail address for that person.
-            // If there is none, pick first e-mail address.
-            String firstEmail = null;
-            String gmailEmail = null;
-            while (emailCursor.moveToNext()) {
-                String tmpEmail = emailCursor.getString(indexData);
-                if (firstEmail == null) {
-                    firstEmail = tmpEmail;
-                }
-                if (isGmailAddress(tmpEmail)) {
-                    gmailEmail = tmpEmail;
-                    break;
+    /**
+     * Returns the contact for an address, or null if there is none. Both
+     * results are kept in an LRU cache of {@link #MAX_PEOPLE_CACHE_SIZE}
+     * entries.
+     */
+    private PersonRecord lookupPerson(String address) {
+        PersonRecord record = mPeopleCache.get(address);
+        if (record == null) {
+            mCacheMisses++;
+            queryPeople(Collections.singleton(address));
+            record = mPeopleCache.get(address);
+        } else {
+            mCacheHits++;
+        }
+        return record == UNKNOWN_RECORD ? null : record;
+    }
+
+    private void queryPeople(Collection<String> addresses) {
+        long started = System.nanoTime();
+        try {
+            Map<String, ContactAccessor.Contact> contacts = mContacts.getContacts(mContext, addresses);
+            for (String address : addresses) {
+                ContactAccessor.Contact contact = contacts.get(address);
+                if (contact != null) {
+                    PersonRecord record = new PersonRecord();
+                    record._id = contact.id;
+                    record.name = contact.name;
+                    record.address = new Address(getEmail(contact), encodeDisplayName(contact.name));
+                    mPeopleCache.put(address, record);
+                } else {
+                    Log.v(Consts.TAG, "Looked up unknown address: " + address);
+                    mPeopleCache.put(address, UNKNOWN_RECORD);
                 }
             }
-            emailCursor.close();
-            primaryEmail = (gmailEmail != null) ? gmailEmail : firstEmail;
+        } finally {
+            mLookupNanos += System.nanoTime() - started;
         }
-        // Return found e-mail address or a dummy "unknown e-mail address"
-        // if there is none.
-        if (primaryEmail == null) {
-            primaryEmail = getUnknownEmail(number);
+    }
+
+    /**
+     * Picks a Gmail address of the contact, or the first one if there is none.
+     * Returns a dummy "unknown e-mail address" if the contact has no addresses.
+     */
+    private static String getEmail(ContactAccessor.Contact contact) {
+        for (String email : contact.emails) {
+            if (isGmailAddress(email)) {
+                return email;
+            }
         }
-        return primaryEmail;
+        return contact.emails.isEmpty() ? getUnknownEmail(contact.number) : contact.emails.get(0);
     }
 
     private static String encodeLocal(String s) {
@@ -327,13 +379,75 @@ public class CursorToMessage {
     }
 
     public static class ConversionResult {
+        /** Position of this batch within a backup run, see {@link ConversionPipeline}. */
+        public int sequence;
         public long maxDate;
-        public List<Message> messageList;
+        public List<EncodedMessage> messageList;
+    }
+
+    /**
+     * A message in RFC 822 format, ready to be sent as an IMAP literal. The
+     * messages of a batch share one array.
+     */
+    public static class EncodedMessage {
+        public final byte[] data;
+        public final int offset;
+        public final int length;
+        public final boolean seen;
+
+        EncodedMessage(byte[] data, int offset, int length, boolean seen) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.seen = seen;
+        }
+    }
+
+    /**
+     * Reads typed values from the current row of a cursor, with the column
+     * indices looked up once per cursor instead of once per row.
+     */
+    static class RowReader {
+        private final Cursor cursor;
+        final int id, address, body, type, date, threadId, read, status, protocol, serviceCenter;
+
+        RowReader(Cursor cursor) {
+            this.cursor = cursor;
+            id            = cursor.getColumnIndex(SmsConsts.ID);
+            address       = cursor.getColumnIndex(SmsConsts.ADDRESS);
+            body          = cursor.getColumnIndex(SmsConsts.BODY);
+            type          = cursor.getColumnIndex(SmsConsts.TYPE);
+            date          = cursor.getColumnIndex(SmsConsts.DATE);
+            threadId      = cursor.getColumnIndex(SmsConsts.THREAD_ID);
+            read          = cursor.getColumnIndex(SmsConsts.READ);
+            status        = cursor.getColumnIndex(SmsConsts.STATUS);
+            protocol      = cursor.getColumnIndex(SmsConsts.PROTOCOL);
+            serviceCenter = cursor.getColumnIndex(SmsConsts.SERVICE_CENTER);
+        }
+
+        boolean isBoundTo(Cursor c) {
+            return cursor == c;
+        }
+
+        long getDate() {
+            return cursor.getLong(date);
+        }
+
+        int getType() {
+            return cursor.getInt(type);
+        }
+
+        /** Returns the string value of a column, or null if it isn't part of the projection. */
+        String getString(int index) {
+            return index == -1 ? null : cursor.getString(index);
+        }
     }
 
     private static class PersonRecord {
         String _id;
         String name;
         Address address;
+        /** The References header for this person, built on first use */
+        String reference;
     }
 }
@@ -10,18 +10,46 @@ import com.fsck.k9.mail.*;
 import android.util.Log;
 import java.net.URLEncoder;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.PriorityQueue;
 import java.util.List;
 import java.util.Comparator;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import com.fsck.k9.mail.filter.FixedLengthInputStream;
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.IImapResponseCallback;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.zegoggles.smssync.CursorToMessage.EncodedMessage;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class ImapStore extends com.fsck.k9.mail.store.ImapStore {
+    /** Headers identifying a backed up message, see CursorToMessage#createMessageId */
+    private static final String[] DEDUP_HEADERS = {
+        CursorToMessage.Headers.DATE, CursorToMessage.Headers.ADDRESS, CursorToMessage.Headers.TYPE
+    };
+
     private Context context;
 
     public ImapStore(final Context context) throws MessagingException {
 
         super(new Account(Preferences.getPreferences(context), null) {
+            /**
+             * K-9 negotiates COMPRESS=DEFLATE if the server offers it and this
+             * allows it for the current network type.
+             */
+            @Override
+            public boolean useCompression(int type) {
+                return PrefStore.isUseCompression(context);
+            }
+
             @Override
             public String getStoreUri() {
                 String username = PrefStore.getLoginUsername(context);
@@ -69,49 +97,654 @@ public class ImapStore extends com.fsck.k9.mail.store.ImapStore {
 
 
     public class BackupFolder extends ImapFolder {
+        /** Envelopes fetched per requested message when selecting the newest ones. */
+        static final int TOP_N_CANDIDATES = 2;
+
+        /** RFC 3502, allows several messages to be appended with a single command. */
+        static final String CAPABILITY_MULTIAPPEND = "MULTIAPPEND";
+
+        /** RFC 2088, allows literals to be sent without waiting for a continuation. */
+        static final String CAPABILITY_LITERAL_PLUS = "LITERAL+";
+
+        /** Number of pipelined APPENDs which may wait for completion. */
+        static final int PIPELINE_WINDOW = 8;
+
+        /** RFC 4315, provides UID EXPUNGE. */
+        static final String CAPABILITY_UIDPLUS = "UIDPLUS";
+
+        /** Messages whose headers are fetched at once when looking for duplicates. */
+        static final int DEDUP_BATCH_SIZE = 1000;
+
+        /** Longest UID set sent in a single command, some servers limit the line length. */
+        static final int MAX_UID_SET_LENGTH = 8000;
+
+        /** UIDVALIDITY reported when the folder was selected, -1 if unknown. */
+        private volatile long mUidValidity = -1;
+
+        private Object mMeteredConnection;
+        private CompressionMeter mMeter;
+
+        /** Messages and tags of the body fetches in flight, see {@link #sendFetchBodies} */
+        private final Map<String, Message> mFetching = new HashMap<String, Message>();
+        private final Set<String> mFetchTags = new HashSet<String>();
+        /** Tags of the commands each {@link #sendFetchBodies} was split into, by the returned tag */
+        private final Map<String, List<String>> mFetchGroups = new HashMap<String, List<String>>();
 
         public BackupFolder(ImapStore store, String name) {
             super(store, name);
         }
 
-        public Message[] getMessagesSince(final Date since, int max) throws MessagingException  {
-            ImapSearcher searcher = new ImapSearcher()
-            {
-                public List<ImapResponse> search() throws IOException, MessagingException
-                {
-                    String sentSince = since != null ? " SENTSINCE " + RFC3501_DATE.format(since) : "";
-                    return executeSimpleCommand("UID SEARCH 1:* NOT DELETED" + sentSince);
+        /**
+         * Returns the {@link CompressionMeter} of the current connection, or
+         * null if it isn't compressed.
+         */
+        public CompressionMeter getCompressionMeter() {
+            if (mConnection != null && mConnection != mMeteredConnection) {
+                mMeteredConnection = mConnection;
+                try {
+                    mMeter = new RawImapConnection(mConnection).meterCompression();
+                } catch (MessagingException e) {
+                    Log.w(Consts.TAG, "can't measure compression", e);
+                    mMeter = null;
+                }
+            }
+            return mMeter;
+        }
+
+        /**
+         * Sends a NOOP, which keeps the connection from timing out. Returns
+         * false, after disconnecting, if the connection no longer works.
+         */
+        public boolean noop() {
+            if (!isOpen()) return false;
+            try {
+                executeSimpleCommand("NOOP");
+                return true;
+            } catch (IOException e) {
+                Log.d(Consts.TAG, "NOOP failed", e);
+            } catch (MessagingException e) {
+                Log.d(Consts.TAG, "NOOP failed", e);
+            }
+            disconnect();
+            return false;
+        }
+
+        /**
+         * Closes the folder and its connection. Unlike {@link #close()}, which
+         * hands the connection back to K-9's store, this logs out for good.
+         */
+        public void disconnect() {
+            if (mConnection != null) {
+                try {
+                    new RawImapConnection(mConnection).close();
+                } catch (MessagingException ignored) {
+                }
+            }
+            close();
+        }
+
+        /**
+         * Returns the UIDVALIDITY of the open folder, or -1 if the server
+         * didn't report one. UIDs are only comparable between sessions while
+         * it stays the same.
+         */
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        /**
+         * Also picks up the UIDVALIDITY response code, which like UIDNEXT is
+         * sent as an untagged OK when the folder is selected.
+         */
+        @Override
+        protected void handlePossibleUidNext(ImapResponse response) {
+            super.handlePossibleUidNext(response);
+            if (ImapResponseParser.equalsIgnoreCase(response.get(0), "OK") && response.size() > 1 &&
+                response.get(1) instanceof ImapList) {
+                ImapList code = (ImapList) response.get(1);
+                if (code.size() > 1 && ImapResponseParser.equalsIgnoreCase(code.get(0), "UIDVALIDITY")) {
+                    try {
+                        mUidValidity = Long.parseLong(code.getString(1));
+                    } catch (NumberFormatException e) {
+                        Log.w(Consts.TAG, "invalid UIDVALIDITY " + code.get(1));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Appends a batch of encoded messages. If the server supports MULTIAPPEND
+         * all messages are sent with a single command, otherwise the APPENDs are
+         * pipelined, with up to {@link #PIPELINE_WINDOW} of them waiting for
+         * completion. With LITERAL+ the messages are sent without waiting for
+         * the server to ask for them. No UID lookup is done afterwards.
+         */
+        public void appendBatch(List<EncodedMessage> messages) throws MessagingException {
+            if (messages.isEmpty()) return;
+            if (!isOpen()) {
+                throw new MessagingException("Folder " + getPrefixedName() + " is not open.");
+            }
+
+            RawImapConnection conn = new RawImapConnection(mConnection);
+            try {
+                boolean literalPlus = conn.hasCapability(CAPABILITY_LITERAL_PLUS);
+                if (messages.size() > 1 && conn.hasCapability(CAPABILITY_MULTIAPPEND)) {
+                    multiAppend(conn, messages, literalPlus);
+                } else {
+                    pipelinedAppend(conn, messages, literalPlus);
+                }
+            } catch (IOException e) {
+                conn.close();
+                close();
+                throw new MessagingException("IO Error", e);
+            }
+        }
+
+        private void pipelinedAppend(RawImapConnection conn, List<EncodedMessage> messages, boolean literalPlus)
+                throws IOException, MessagingException {
+            LinkedList<String> inFlight = new LinkedList<String>();
+            Set<String> pending = new HashSet<String>();
+            OutputStream out = conn.getOutputStream();
+            for (EncodedMessage message : messages) {
+                while (inFlight.size() >= PIPELINE_WINDOW) {
+                    String oldest = inFlight.removeFirst();
+                    if (pending.contains(oldest)) {
+                        conn.readPipelined(oldest, false, pending, this);
+                    }
+                }
+
+                String tag = conn.sendCommand(appendCommand(message, literalPlus));
+                inFlight.add(tag);
+                pending.add(tag);
+                if (!literalPlus) {
+                    conn.readPipelined(tag, true, pending, this);
+                }
+                out.write(message.data, message.offset, message.length);
+                out.write('\r');
+                out.write('\n');
+                out.flush();
+            }
+            for (String tag : inFlight) {
+                if (pending.contains(tag)) {
+                    conn.readPipelined(tag, false, pending, this);
+                }
+            }
+        }
+
+        private void multiAppend(RawImapConnection conn, List<EncodedMessage> messages, boolean literalPlus)
+                throws IOException, MessagingException {
+            Log.d(Consts.TAG, "MULTIAPPEND of " + messages.size() + " messages");
+
+            String tag = conn.sendCommand(appendCommand(messages.get(0), literalPlus));
+            OutputStream out = conn.getOutputStream();
+            for (int i = 0; i < messages.size(); i++) {
+                EncodedMessage message = messages.get(i);
+                if (!literalPlus) {
+                    conn.readContinuation(tag, this);
+                }
+                out.write(message.data, message.offset, message.length);
+                if (i + 1 < messages.size()) {
+                    out.write(' ');
+                    out.write(literalSpec(messages.get(i + 1), literalPlus).getBytes());
+                }
+                out.write('\r');
+                out.write('\n');
+                if (!literalPlus || i + 1 == messages.size()) {
+                    out.flush();
+                }
+            }
+            conn.readTaggedResponse(tag, this);
+        }
+
+        private String appendCommand(EncodedMessage message, boolean literalPlus) throws MessagingException {
+            return "APPEND " + RawImapConnection.quoteFolderName(ImapStore.this, getPrefixedName()) + " " +
+                    literalSpec(message, literalPlus);
+        }
+
+        /**
+         * Flags and literal length of a message, as a non-synchronizing literal
+         * (RFC 2088) if <code>literalPlus</code>.
+         */
+        private String literalSpec(EncodedMessage message, boolean literalPlus) {
+            return "(" + (message.seen ? "\\Seen" : "") + ") {" + message.length + (literalPlus ? "+}" : "}");
+        }
+
+        /**
+         * Fetches only the named headers of <code>messages</code> and sets them
+         * on the messages, leaving the bodies on the server. The UIDs are sent as
+         * compact sets, with as few UID FETCH commands as the line length
+         * allows.
+         */
+        public void fetchHeaders(Message[] messages, String... names) throws MessagingException {
+            if (messages.length == 0) return;
+            if (!isOpen()) {
+                throw new MessagingException("Folder " + getPrefixedName() + " is not open.");
+            }
+
+            Map<String, Message> byUid = new HashMap<String, Message>(messages.length * 2);
+            long[] uids = new long[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                uids[i] = Long.parseLong(messages[i].getUid());
+                byUid.put(messages[i].getUid(), messages[i]);
+            }
+            Arrays.sort(uids);
+            StringBuilder fields = new StringBuilder();
+            for (String name : names) {
+                if (fields.length() > 0) fields.append(' ');
+                fields.append(name);
+            }
+
+            for (int from = 0; from < uids.length; ) {
+                StringBuilder set = new StringBuilder();
+                from = appendUidSet(set, uids, from, uids.length);
+                fetchHeaders(byUid, "UID FETCH " + set + " (UID BODY.PEEK[HEADER.FIELDS (" + fields + ")])");
+            }
+        }
+
+        private void fetchHeaders(Map<String, Message> byUid, String command) throws MessagingException {
+            try {
+                for (ImapResponse response : executeSimpleCommand(command)) {
+                    if (response.size() < 3 || !ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        continue;
+                    }
+                    ImapList fetchList = response.getKeyedList("FETCH");
+                    Message message = byUid.get(fetchList.getKeyedString("UID"));
+                    if (message == null || !fetchList.containsKey("BODY")) continue;
+
+                    // BODY [HEADER.FIELDS (...)] {literal}
+                    Object header = fetchList.getObject(fetchList.getKeyIndex("BODY") + 2);
+                    if (header instanceof String) {
+                        setHeaders(message, (String) header);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new MessagingException("IO Error", e);
+            }
+        }
+
+        /**
+         * Fetches the complete messages with a single UID FETCH. Instead of K-9's
+         * parser, which writes every body to a temporary file, the messages are
+         * parsed with <code>pool</code> and their bodies kept in pooled buffers
+         * (see {@link PooledBody}).
+         */
+        public void fetchBodies(Message[] messages, BodyPool pool) throws MessagingException {
+            if (messages.length == 0) return;
+            readFetchBodies(sendFetchBodies(messages), pool);
+        }
+
+        /**
+         * Sends the UID FETCH for the complete <code>messages</code> without
+         * reading the response, so several fetches can be in flight on the
+         * connection. The UIDs are sent as compact sets, split over several
+         * commands if they don't fit into one line. Returns the tag to pass to
+         * {@link #readFetchBodies}.
+         */
+        public String sendFetchBodies(Message[] messages) throws MessagingException {
+            if (!isOpen()) {
+                throw new MessagingException("Folder " + getPrefixedName() + " is not open.");
+            }
+
+            long[] uids = new long[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                uids[i] = Long.parseLong(messages[i].getUid());
+                mFetching.put(messages[i].getUid(), messages[i]);
+            }
+            Arrays.sort(uids);
+
+            RawImapConnection conn = new RawImapConnection(mConnection);
+            try {
+                List<String> tags = new ArrayList<String>(1);
+                for (int from = 0; from < uids.length; ) {
+                    StringBuilder set = new StringBuilder();
+                    from = appendUidSet(set, uids, from, uids.length);
+                    String tag = conn.sendCommand("UID FETCH " + set + " (UID BODY.PEEK[])");
+                    mFetchTags.add(tag);
+                    tags.add(tag);
+                }
+                String tag = tags.get(tags.size() - 1);
+                mFetchGroups.put(tag, tags);
+                return tag;
+            } catch (IOException e) {
+                conn.close();
+                close();
+                throw new MessagingException("IO Error", e);
+            }
+        }
+
+        /**
+         * Reads responses until the fetch sent with <code>tag</code> completes.
+         * Servers may interleave the responses of pipelined fetches, so
+         * messages are matched against all fetches in flight; bodies of later
+         * fetches arriving early are kept on their messages.
+         */
+        public void readFetchBodies(String tag, final BodyPool pool) throws MessagingException {
+            IImapResponseCallback callback = new IImapResponseCallback() {
+                public Object foundLiteral(ImapResponse response, FixedLengthInputStream literal) throws IOException {
+                    return pool.parse(literal);
                 }
             };
 
-            Message[] msgs = search(searcher, null);
+            List<String> group = mFetchGroups.remove(tag);
+            if (group == null) group = Collections.singletonList(tag);
+
+            RawImapConnection conn = new RawImapConnection(mConnection);
+            try {
+                while (containsAny(mFetchTags, group)) {
+                    ImapResponse response = conn.readResponse(callback);
+                    String responseTag = RawImapConnection.getTag(response);
+                    if (responseTag != null) {
+                        if (mFetchTags.remove(responseTag) &&
+                            (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK"))) {
+                            throw new MessagingException("Command failed: " + response);
+                        }
+                        continue;
+                    }
+
+                    if (response.size() < 3 || !ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        handleUntagged(response);
+                        continue;
+                    }
+                    ImapList fetchList = response.getKeyedList("FETCH");
+                    if (!fetchList.containsKey("BODY")) continue;
+
+                    // BODY [] {literal}
+                    Object parsed = fetchList.getObject(fetchList.getKeyIndex("BODY") + 2);
+                    if (parsed instanceof BodyPool.Parsed) {
+                        Message message = mFetching.remove(fetchList.getKeyedString("UID"));
+                        if (message != null) {
+                            ((BodyPool.Parsed) parsed).applyTo(message);
+                        } else {
+                            ((BodyPool.Parsed) parsed).release();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                conn.close();
+                close();
+                throw new MessagingException("IO Error", e);
+            } finally {
+                if (mFetchTags.isEmpty()) {
+                    // messages the server didn't return
+                    mFetching.clear();
+                    mFetchGroups.clear();
+                }
+            }
+        }
+
+        private void setHeaders(Message message, String header) throws MessagingException {
+            String name = null;
+            StringBuilder value = new StringBuilder();
+            for (String line : header.split("\r?\n")) {
+                if (line.length() > 0 && Character.isWhitespace(line.charAt(0)) && name != null) {
+                    // folded header
+                    value.append(line);
+                    continue;
+                }
+                if (name != null) {
+                    message.setHeader(name, value.toString().trim());
+                    name = null;
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    name = line.substring(0, colon).trim();
+                    value.setLength(0);
+                    value.append(line.substring(colon + 1));
+                }
+            }
+            if (name != null) {
+                message.setHeader(name, value.toString().trim());
+            }
+        }
+
+        private boolean containsAny(Set<String> tags, List<String> group) {
+            for (String tag : group) {
+                if (tags.contains(tag)) return true;
+            }
+            return false;
+        }
+
+        void handleUntagged(ImapResponse response) {
+            handleUntaggedResponse(response);
+        }
+
+        public Message[] getMessagesSince(final Date since, int max) throws MessagingException  {
+            long[] uids = getUidsSince(0, since, max);
+            return getMessages(uids, 0, uids.length);
+        }
+
+        /**
+         * Returns the UIDs of the messages with a UID above <code>lastUid</code>,
+         * sent since <code>since</code> if not null, in ascending order. Unlike
+         * K-9's search this doesn't create a message object per UID, so a large
+         * folder only takes 8 bytes per message. If <code>max</code> is not -1,
+         * only the UIDs of the <code>max</code> newest messages are returned.
+         */
+        public long[] getUidsSince(long lastUid, Date since, int max) throws MessagingException {
+            if (!isOpen()) {
+                throw new MessagingException("Folder " + getPrefixedName() + " is not open.");
+            }
+            String sentSince = since != null ? " SENTSINCE " + RFC3501_DATE.format(since) : "";
+
+            long[] uids = new long[64];
+            int count = 0;
+            try {
+                for (ImapResponse response : executeSimpleCommand(
+                        "UID SEARCH " + (lastUid + 1) + ":* NOT DELETED" + sentSince)) {
+                    if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
+                        continue;
+                    }
+                    for (int i = 1; i < response.size(); i++) {
+                        long uid = Long.parseLong(response.getString(i));
+                        // "n:*" always matches the message with the highest UID, even if that is below n
+                        if (uid <= lastUid) continue;
+
+                        if (count == uids.length) {
+                            long[] grown = new long[uids.length * 2];
+                            System.arraycopy(uids, 0, grown, 0, count);
+                            uids = grown;
+                        }
+                        uids[count++] = uid;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw new MessagingException("IO Error", e);
+            }
+            long[] result = new long[count];
+            System.arraycopy(uids, 0, result, 0, count);
+            Arrays.sort(result);
+
+            Log.d(Consts.TAG, "Found " + result.length + " msgs" + (since == null ? "" : " (since " + since + ")") +
+                    (lastUid > 0 ? " (after UID " + lastUid + ")" : ""));
+
+            if (max != -1 && result.length > max) {
+                return newest(result, max);
+            }
+            return result;
+        }
+
+        /**
+         * Creates the messages for <code>uids[from]</code> to
+         * <code>uids[to - 1]</code> without fetching anything.
+         */
+        public Message[] getMessages(long[] uids, int from, int to) throws MessagingException {
+            Message[] messages = new Message[to - from];
+            for (int i = from; i < to; i++) {
+                messages[i - from] = getMessage(Long.toString(uids[i]));
+            }
+            return messages;
+        }
 
-            Log.d(Consts.TAG, "Found " + msgs.length + " msgs" + (since == null ? "" : " (since " + since + ")"));
+        /**
+         * Finds messages which were backed up more than once and deletes all
+         * but the first (lowest UID) of each. Messages are identified by the
+         * same fields as {@link CursorToMessage}'s Message-ID (date, address
+         * and type), read from the X-smssync headers in batches of
+         * {@link #DEDUP_BATCH_SIZE}. A message is only deleted if these headers
+         * match the ones of the copy which is kept, so a hash collision in the
+         * {@link UidIndex} can't remove a different message. The duplicates are
+         * flagged with a UID STORE over a compact UID set and removed with a
+         * single expunge.
+         *
+         * Called from the "Find duplicates" menu item, which does a dry run
+         * first and only deletes once the user confirms.
+         *
+         * @param dryRun only count the duplicates
+         * @return the number of duplicates found
+         */
+        public int deleteDuplicates(boolean dryRun) throws MessagingException {
+            long[] uids = getUidsSince(0, null, -1);
+            UidIndex seen = new UidIndex(uids.length);
+            long[] duplicates = new long[64];
+            int count = 0;
 
-            if (max != -1 && msgs.length > max) {
-                Log.d(Consts.TAG, "Fetching envelopes");
+            for (int start = 0; start < uids.length; start += DEDUP_BATCH_SIZE) {
+                Message[] batch = getMessages(uids, start, Math.min(start + DEDUP_BATCH_SIZE, uids.length));
+                fetchHeaders(batch, DEDUP_HEADERS);
 
-                FetchProfile fp = new FetchProfile();
-                fp.add(FetchProfile.Item.DATE);
-                fetch(msgs, fp, null);
+                // batches and the UIDs in them are ascending, the first copy is kept
+                Message[] candidates = new Message[batch.length];
+                long[] firstUids = new long[batch.length];
+                int candidateCount = 0;
+                for (Message message : batch) {
+                    String type = ServiceBase.getHeader(message, CursorToMessage.Headers.TYPE);
+                    if (type == null) continue;
+
+                    long first = seen.putIfAbsent(ServiceBase.getHeader(message, CursorToMessage.Headers.DATE),
+                            ServiceBase.getHeader(message, CursorToMessage.Headers.ADDRESS), type.trim(),
+                            Long.parseLong(message.getUid()));
+                    if (first != -1) {
+                        candidates[candidateCount] = message;
+                        firstUids[candidateCount++] = first;
+                    }
+                }
+                if (candidateCount == 0) continue;
+
+                // compare with the headers of the kept copies
+                Map<String, Message> firstByUid = new HashMap<String, Message>(candidateCount * 2);
+                for (int i = 0; i < candidateCount; i++) {
+                    String uid = Long.toString(firstUids[i]);
+                    if (!firstByUid.containsKey(uid)) {
+                        firstByUid.put(uid, getMessage(uid));
+                    }
+                }
+                fetchHeaders(firstByUid.values().toArray(new Message[firstByUid.size()]), DEDUP_HEADERS);
+
+                for (int i = 0; i < candidateCount; i++) {
+                    if (!isSameMessage(candidates[i], firstByUid.get(Long.toString(firstUids[i])))) {
+                        Log.d(Consts.TAG, "hash collision, keeping " + candidates[i].getUid());
+                        continue;
+                    }
+                    if (count == duplicates.length) {
+                        long[] grown = new long[duplicates.length * 2];
+                        System.arraycopy(duplicates, 0, grown, 0, count);
+                        duplicates = grown;
+                    }
+                    duplicates[count++] = Long.parseLong(candidates[i].getUid());
+                }
+            }
+            Log.d(Consts.TAG, "Found " + count + " duplicates in " + uids.length + " msgs (index: " +
+                    seen.getMemoryUsage() / 1024 + "KB)");
+            if (dryRun || count == 0) return count;
 
-                Log.d(Consts.TAG, "Sorting");
-                //Debug.startMethodTracing("sorting");
-                Arrays.sort(msgs, new Comparator<Message>() {
-                    public int compare(Message m1, Message m2) {
-                        return (m2 != null && m2.getSentDate() != null) ?
-                                m2.getSentDate().compareTo(m1.getSentDate()) : -1;
+            RawImapConnection conn = new RawImapConnection(mConnection);
+            try {
+                for (int from = 0; from < count; ) {
+                    StringBuilder set = new StringBuilder();
+                    from = appendUidSet(set, duplicates, from, count);
+                    executeSimpleCommand("UID STORE " + set + " +FLAGS.SILENT (\\Deleted)");
+                }
+                if (conn.hasCapability(CAPABILITY_UIDPLUS)) {
+                    // leaves messages deleted by other clients alone
+                    for (int from = 0; from < count; ) {
+                        StringBuilder set = new StringBuilder();
+                        from = appendUidSet(set, duplicates, from, count);
+                        executeSimpleCommand("UID EXPUNGE " + set);
                     }
-                });
-                //Debug.stopMethodTracing();
+                } else {
+                    executeSimpleCommand("EXPUNGE");
+                }
+            } catch (IOException e) {
+                close();
+                throw new MessagingException("IO Error", e);
+            }
+            return count;
+        }
 
-                Message[] recent = new Message[max];
-                System.arraycopy(msgs, 0, recent, 0, max);
+        private boolean isSameMessage(Message m1, Message m2) {
+            for (String header : DEDUP_HEADERS) {
+                String v1 = ServiceBase.getHeader(m1, header), v2 = ServiceBase.getHeader(m2, header);
+                if (v1 == null || v2 == null || !v1.trim().equals(v2.trim())) return false;
+            }
+            return true;
+        }
 
-                return recent;
+        /**
+         * Appends the ascending <code>uids</code>, starting at <code>from</code>,
+         * to <code>set</code> as ranges ("1:5,7,9:12"), up to
+         * {@link #MAX_UID_SET_LENGTH} characters.
+         *
+         * @return the index of the first UID not in the set
+         */
+        private int appendUidSet(StringBuilder set, long[] uids, int from, int to) {
+            int i = from;
+            while (i < to && set.length() < MAX_UID_SET_LENGTH) {
+                int end = i;
+                while (end + 1 < to && uids[end + 1] == uids[end] + 1) {
+                    end++;
+                }
+                if (set.length() > 0) set.append(',');
+                set.append(uids[i]);
+                if (end > i) set.append(':').append(uids[end]);
+                i = end + 1;
             }
+            return i;
+        }
+
+        /**
+         * Selects the <code>max</code> newest of the messages with the given
+         * ascending UIDs. UIDs grow with every append, so only the envelopes of
+         * the messages with the highest UIDs (a window of
+         * {@link #TOP_N_CANDIDATES} times <code>max</code>) are fetched, and the
+         * newest of those are kept in a bounded heap.
+         */
+        private long[] newest(long[] uids, int max) throws MessagingException {
+            int candidateCount = (int) Math.min(uids.length, (long) max * TOP_N_CANDIDATES);
+            Message[] candidates = getMessages(uids, uids.length - candidateCount, uids.length);
+
+            Log.d(Consts.TAG, "Fetching envelopes of " + candidates.length + " candidates");
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.DATE);
+            fetch(candidates, fp, null);
 
-            return msgs;
+            Comparator<Message> byDate = new Comparator<Message>() {
+                public int compare(Message m1, Message m2) {
+                    Date d1 = m1.getSentDate(), d2 = m2.getSentDate();
+                    if (d1 == null) return d2 == null ? 0 : -1;
+                    if (d2 == null) return 1;
+                    return d1.compareTo(d2);
+                }
+            };
+            // oldest of the current selection on top
+            PriorityQueue<Message> heap = new PriorityQueue<Message>(max, byDate);
+            for (Message m : candidates) {
+                if (heap.size() < max) {
+                    heap.add(m);
+                } else if (byDate.compare(m, heap.peek()) > 0) {
+                    heap.poll();
+                    heap.add(m);
+                }
+            }
+
+            long[] recent = new long[heap.size()];
+            int i = 0;
+            for (Message m : heap) {
+                recent[i++] = Long.parseLong(m.getUid());
+            }
+            Arrays.sort(recent);
+            return recent;
         }
     }
 }
@@ -0,0 +1,97 @@
+package com.zegoggles.smssync;
+
+/**
+ * A set of messages, identified by date, address and type, used during restore
+ * to skip messages which are already on the phone.
+ *
+ * Only a 64 bit hash of each key is stored, in an open-addressing table of
+ * longs (8-16 bytes per message, about 2MB for 100k messages instead of
+ * a HashSet of strings). A hash collision would make restore skip a message;
+ * with 64 bit hashes the chance of that for 100k messages is around 1e-9.
+ */
+class MessageIndex {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+
+    /** 0 marks an empty slot, hashes of 0 are stored as 1. */
+    private static final long EMPTY = 0;
+
+    private long[] mTable;
+    private int mSize;
+
+    MessageIndex(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        mTable = new long[capacity];
+    }
+
+    /**
+     * @return true if the message wasn't in the index yet
+     */
+    boolean add(String date, String address, String type) {
+        return add(hash(date, address, type));
+    }
+
+    boolean contains(String date, String address, String type) {
+        long h = hash(date, address, type);
+        long[] table = mTable;
+        int mask = table.length - 1;
+        for (int i = (int) (h ^ (h >>> 32)) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == h) return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /** Returns the memory used by the table in bytes. */
+    long getMemoryUsage() {
+        return mTable.length * 8L;
+    }
+
+    private boolean add(long h) {
+        if ((mSize + 1) * 2 > mTable.length) {
+            grow();
+        }
+        long[] table = mTable;
+        int mask = table.length - 1;
+        int i = (int) (h ^ (h >>> 32)) & mask;
+        for (; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == h) return false;
+        }
+        table[i] = h;
+        mSize++;
+        return true;
+    }
+
+    private void grow() {
+        long[] old = mTable;
+        mTable = new long[old.length * 2];
+        mSize = 0;
+        for (long h : old) {
+            if (h != EMPTY) add(h);
+        }
+    }
+
+    static long hash(String date, String address, String type) {
+        long h = FNV_OFFSET;
+        h = hash(h, date);
+        h = hash(h, address);
+        h = hash(h, type);
+        return h == EMPTY ? 1 : h;
+    }
+
+    private static long hash(long h, String s) {
+        if (s != null) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                h = (h ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // separates the fields and null from ""
+        return (h ^ (s == null ? 0xffff : 0xfffe)) * FNV_PRIME;
+    }
+}
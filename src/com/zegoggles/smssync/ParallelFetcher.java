@@ -0,0 +1,171 @@
+package com.zegoggles.smssync;
+
+import android.os.Process;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Fetches the bodies of messages to restore over several IMAP connections.
+ *
+ * The messages are split into batches of consecutive UIDs. Each connection
+ * has a worker thread which fetches the next batch nobody has claimed yet;
+ * {@link #next()} hands the fetched batches to the single inserting thread
+ * in their original order. Workers stay at most {@link #WINDOW_PER_CONNECTION}
+ * batches per connection ahead of the inserter, which bounds the number of
+ * bodies held in memory. Within that window a worker pipelines its fetches,
+ * sending the next UID FETCH before the response to the previous one has
+ * been read.
+ */
+class ParallelFetcher {
+    static final int WINDOW_PER_CONNECTION = 2;
+
+    private final List<ImapStore.BackupFolder> mFolders;
+    private final List<Message> mMessages;
+    private final int mBatchSize;
+    private final BodyPool mPool;
+    private final Message[][] mFetched;
+    private final int mWindow;
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+
+    private int mNextBatch, mTaken;
+    private boolean mStopped;
+    private Exception mError;
+
+    ParallelFetcher(List<ImapStore.BackupFolder> folders, List<Message> messages, int batchSize, BodyPool pool) {
+        mFolders = folders;
+        mMessages = messages;
+        mBatchSize = batchSize;
+        mPool = pool;
+        mFetched = new Message[(messages.size() + batchSize - 1) / batchSize][];
+        mWindow = folders.size() * WINDOW_PER_CONNECTION;
+    }
+
+    void start() {
+        for (int i = 0; i < mFolders.size(); i++) {
+            final ImapStore.BackupFolder folder = mFolders.get(i);
+            Thread t = new Thread("ParallelFetcher-" + i) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    fetch(folder);
+                }
+            };
+            mThreads.add(t);
+            t.start();
+        }
+    }
+
+    private void fetch(ImapStore.BackupFolder folder) {
+        LinkedList<Integer> indexes = new LinkedList<Integer>();
+        LinkedList<Message[]> batches = new LinkedList<Message[]>();
+        LinkedList<String> tags = new LinkedList<String>();
+        try {
+            while (true) {
+                // keep the connection busy while the server works on the previous fetch
+                int index;
+                while (indexes.size() < WINDOW_PER_CONNECTION && (index = claim(indexes.isEmpty())) != -1) {
+                    int start = index * mBatchSize;
+                    Message[] batch = mMessages.subList(start, Math.min(start + mBatchSize, mMessages.size()))
+                            .toArray(new Message[0]);
+                    tags.add(folder.sendFetchBodies(batch));
+                    indexes.add(index);
+                    batches.add(batch);
+                }
+                if (indexes.isEmpty()) return;
+
+                // fetches in flight are read even when stopped, leaving the connection clean
+                folder.readFetchBodies(tags.removeFirst(), mPool);
+                Message[] batch = batches.removeFirst();
+                synchronized (this) {
+                    mFetched[indexes.removeFirst()] = batch;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (MessagingException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Claims the next batch to fetch, or returns -1 if there is none or the
+     * worker is too far ahead of the inserter. Only waits for the inserter
+     * if <code>block</code> is set.
+     */
+    private synchronized int claim(boolean block) throws InterruptedException {
+        while (block && !mStopped && mNextBatch < mFetched.length && mNextBatch >= mTaken + mWindow) {
+            wait();
+        }
+        if (mStopped || mNextBatch >= mFetched.length || mNextBatch >= mTaken + mWindow) return -1;
+        return mNextBatch++;
+    }
+
+    private synchronized void fail(Exception e) {
+        if (mError == null) mError = e;
+        notifyAll();
+    }
+
+    /**
+     * Returns the next batch in UID order once its bodies are fetched, or null
+     * if all batches have been returned.
+     *
+     * @throws MessagingException if a fetch failed
+     */
+    synchronized Message[] next() throws MessagingException, InterruptedException {
+        if (mTaken >= mFetched.length) return null;
+
+        while (mFetched[mTaken] == null && mError == null) {
+            wait();
+        }
+        if (mError instanceof MessagingException) {
+            throw (MessagingException) mError;
+        } else if (mError != null) {
+            throw new MessagingException("error fetching messages", mError);
+        }
+
+        Message[] batch = mFetched[mTaken];
+        mFetched[mTaken++] = null;
+        notifyAll();
+        return batch;
+    }
+
+    /**
+     * Stops all workers and waits for them to finish. Bodies of batches which
+     * were fetched but not returned by {@link #next()} are released.
+     */
+    void stop() {
+        synchronized (this) {
+            mStopped = true;
+            notifyAll();
+        }
+        for (Thread t : mThreads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Log.w(Consts.TAG, "interrupted while waiting for fetcher to finish");
+            }
+        }
+        synchronized (this) {
+            for (int i = mTaken; i < mFetched.length; i++) {
+                if (mFetched[i] == null) continue;
+                for (Message message : mFetched[i]) {
+                    try {
+                        if (message.getBody() instanceof PooledBody) {
+                            ((PooledBody) message.getBody()).release();
+                        }
+                    } catch (MessagingException ignored) {
+                    }
+                }
+                mFetched[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.zegoggles.smssync;
+
+import android.os.Process;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.CursorToMessage.ConversionResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads converted batches over several connections at once. Each folder
+ * gets its own worker thread which takes batches from the
+ * {@link ConversionPipeline}; completed batches are reported back through
+ * {@link #poll(long)} in whatever order they finish.
+ */
+class ParallelUploader {
+    /** A finished batch, or the failure of a worker. */
+    static class Completion {
+        final ConversionResult result;
+        final Exception error;
+
+        Completion(ConversionResult result, Exception error) {
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    private final List<ImapStore.BackupFolder> mFolders;
+    private final ConversionPipeline mPipeline;
+    private final BlockingQueue<Completion> mCompletions = new LinkedBlockingQueue<Completion>();
+    private final List<Thread> mWorkers = new ArrayList<Thread>();
+    private volatile boolean mStopped;
+    private int mRunning;
+
+    ParallelUploader(List<ImapStore.BackupFolder> folders, ConversionPipeline pipeline) {
+        mFolders = folders;
+        mPipeline = pipeline;
+    }
+
+    void start() {
+        for (int i = 0; i < mFolders.size(); i++) {
+            final ImapStore.BackupFolder folder = mFolders.get(i);
+            Thread worker = new Thread("ParallelUploader-" + i) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    upload(folder);
+                }
+            };
+            mWorkers.add(worker);
+        }
+        mRunning = mWorkers.size();
+        for (Thread worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    private void upload(ImapStore.BackupFolder folder) {
+        try {
+            while (!mStopped) {
+                ConversionResult result = mPipeline.take();
+                if (result.messageList.isEmpty()) break;
+
+                folder.appendBatch(result.messageList);
+                mCompletions.add(new Completion(result, null));
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (MessagingException e) {
+            mCompletions.add(new Completion(null, e));
+        } catch (RuntimeException e) {
+            mCompletions.add(new Completion(null, e));
+        }
+        mCompletions.add(new Completion(null, null));
+    }
+
+    /**
+     * Waits up to <code>timeoutMs</code> for the next completed batch.
+     *
+     * @return the uploaded batch, or null on timeout or once all workers are done
+     * @throws MessagingException if a worker failed
+     */
+    ConversionResult poll(long timeoutMs) throws MessagingException, InterruptedException {
+        while (mRunning > 0) {
+            Completion completion = mCompletions.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (completion == null) {
+                return null;
+            } else if (completion.error instanceof MessagingException) {
+                throw (MessagingException) completion.error;
+            } else if (completion.error != null) {
+                throw new MessagingException("error uploading messages", completion.error);
+            } else if (completion.result != null) {
+                return completion.result;
+            } else {
+                mRunning--;
+            }
+        }
+        return null;
+    }
+
+    /** Returns whether all workers have finished. */
+    boolean isDone() {
+        return mRunning == 0;
+    }
+
+    /**
+     * Returns the batches which were uploaded but not returned by
+     * {@link #poll(long)} yet, e.g. after a failure or cancel. Call after
+     * {@link #stop()} so no more batches complete.
+     */
+    List<ConversionResult> drain() {
+        List<ConversionResult> results = new ArrayList<ConversionResult>();
+        Completion completion;
+        while ((completion = mCompletions.poll()) != null) {
+            if (completion.result != null) {
+                results.add(completion.result);
+            }
+        }
+        return results;
+    }
+
+    /** Stops the workers and waits until they have finished their current batch. */
+    void stop() {
+        mStopped = true;
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+        for (Thread worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Log.w(Consts.TAG, "interrupted while waiting for upload to finish");
+            }
+        }
+    }
+}
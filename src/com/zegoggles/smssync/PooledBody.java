@@ -0,0 +1,102 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.MessagingException;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A message body held in a buffer from a {@link BodyPool}. Bodies which don't
+ * fit into a pooled buffer are spilled to a temporary file, which is deleted
+ * when the body is released.
+ */
+class PooledBody implements Body {
+    private final BodyPool mPool;
+    private byte[] mBuffer;
+    private int mLength;
+    private File mSpill;
+
+    PooledBody(BodyPool pool, byte[] buffer) {
+        mPool = pool;
+        mBuffer = buffer;
+    }
+
+    /** Reads the (decoded) body from <code>in</code>. */
+    void readFrom(InputStream in) throws IOException {
+        int n;
+        while (mLength < mBuffer.length && (n = in.read(mBuffer, mLength, mBuffer.length - mLength)) != -1) {
+            mLength += n;
+        }
+        if (mLength == mBuffer.length) {
+            int next = in.read();
+            if (next != -1) {
+                spill(next, in);
+            }
+        }
+    }
+
+    private void spill(int next, InputStream in) throws IOException {
+        mSpill = mPool.createSpillFile();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mSpill));
+        try {
+            out.write(mBuffer, 0, mLength);
+            out.write(next);
+            IOUtils.copy(in, out);
+        } finally {
+            out.close();
+        }
+        mPool.recycle(mBuffer);
+        mBuffer = null;
+    }
+
+    public InputStream getInputStream() throws MessagingException {
+        if (mSpill != null) {
+            try {
+                return new BufferedInputStream(new FileInputStream(mSpill));
+            } catch (FileNotFoundException e) {
+                throw new MessagingException("body already released", e);
+            }
+        } else if (mBuffer == null) {
+            throw new MessagingException("body already released");
+        }
+        return new ByteArrayInputStream(mBuffer, 0, mLength);
+    }
+
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        if (mSpill != null) {
+            InputStream in = getInputStream();
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                in.close();
+            }
+        } else if (mBuffer != null) {
+            out.write(mBuffer, 0, mLength);
+        }
+    }
+
+    /**
+     * Returns the buffer to the pool, or deletes the temporary file. The body
+     * can't be read afterwards.
+     */
+    void release() {
+        if (mBuffer != null) {
+            mPool.recycle(mBuffer);
+            mBuffer = null;
+        }
+        if (mSpill != null) {
+            mSpill.delete();
+            mSpill = null;
+        }
+    }
+}
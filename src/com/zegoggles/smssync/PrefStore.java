@@ -74,10 +74,37 @@ public class PrefStore {
     /** Preference for storing whether restored messages should be marked as read. */
     static final String PREF_MARK_AS_READ_ON_RESTORE = "mark_as_read_on_restore";
 
+    /** Preference for storing the number of messages sent to the server per request. */
+    static final String PREF_BACKUP_BATCH_SIZE = "backup_batch_size";
+
+    /** Preference for storing the number of messages fetched from the server per request during restore. */
+    static final String PREF_RESTORE_BATCH_SIZE = "restore_batch_size";
+
+    /** Preference for storing the number of IMAP connections used for backups. */
+    static final String PREF_BACKUP_CONNECTIONS = "backup_connections";
+
+    /** Preference for storing the number of IMAP connections used for restores. */
+    static final String PREF_RESTORE_CONNECTIONS = "restore_connections";
+
+    /** Preference for storing the IMAP folder the last restore was done from. */
+    static final String PREF_RESTORE_FOLDER = "restore_folder";
+
+    /** Preference for storing the UIDVALIDITY of the folder at the time of the last restore. */
+    static final String PREF_RESTORE_UID_VALIDITY = "restore_uid_validity";
+
+    /** Preference for storing the highest UID seen by the last complete restore. */
+    static final String PREF_RESTORE_LAST_UID = "restore_last_uid";
+
     static final String PREF_PREFILLED  = "prefilled";
     static final String PREF_CONNECTED  = "connected";
     static final String PREF_WIFI_ONLY  = "wifi_only";
 
+    /** Preference for storing whether to compress IMAP connections if the server supports it. */
+    static final String PREF_USE_COMPRESSION = "use_compression";
+
+    /** Preference for storing whether to log in while waiting for the sync after an incoming SMS. */
+    static final String PREF_WARM_UP_CONNECTION = "warm_up_connection";
+
     /** Default value for {@link PrefStore#PREF_MAX_SYNCED_DATE}. */
     static final long DEFAULT_MAX_SYNCED_DATE = -1;
 
@@ -101,6 +128,21 @@ public class PrefStore {
 
     static final String DEFAULT_MAX_ITEMS_PER_RESTORE = "-1";
 
+    /** Default value for {@link #PREF_BACKUP_BATCH_SIZE}. */
+    static final String DEFAULT_BACKUP_BATCH_SIZE = "25";
+
+    /** Default value for {@link #PREF_RESTORE_BATCH_SIZE}. */
+    static final String DEFAULT_RESTORE_BATCH_SIZE = "50";
+
+    /** Default value for {@link #PREF_BACKUP_CONNECTIONS}. */
+    static final String DEFAULT_BACKUP_CONNECTIONS = "1";
+
+    /** Default value for {@link #PREF_RESTORE_CONNECTIONS}. */
+    static final String DEFAULT_RESTORE_CONNECTIONS = "1";
+
+    /** Default value for {@link #PREF_USE_COMPRESSION}. */
+    static final boolean DEFAULT_USE_COMPRESSION = true;
+
     /** Default value for {@link #PREF_MARK_AS_READ}. */
     static final boolean DEFAULT_MARK_AS_READ = true;
 
@@ -219,10 +261,57 @@ public class PrefStore {
       return getStringAsInt(ctx, PREF_MAX_ITEMS_PER_RESTORE, DEFAULT_MAX_ITEMS_PER_RESTORE);
     }
 
+    static int getBackupBatchSize(Context ctx) {
+      return Math.max(1, getStringAsInt(ctx, PREF_BACKUP_BATCH_SIZE, DEFAULT_BACKUP_BATCH_SIZE));
+    }
+
+    static int getRestoreBatchSize(Context ctx) {
+      return Math.max(1, getStringAsInt(ctx, PREF_RESTORE_BATCH_SIZE, DEFAULT_RESTORE_BATCH_SIZE));
+    }
+
+    static int getBackupConnections(Context ctx) {
+      return Math.max(1, getStringAsInt(ctx, PREF_BACKUP_CONNECTIONS, DEFAULT_BACKUP_CONNECTIONS));
+    }
+
+    static int getRestoreConnections(Context ctx) {
+      return Math.max(1, getStringAsInt(ctx, PREF_RESTORE_CONNECTIONS, DEFAULT_RESTORE_CONNECTIONS));
+    }
+
+    /**
+     * Returns the highest UID seen by the last complete restore from
+     * <code>folder</code>, or 0 if there was none or the folder has been
+     * recreated since (its UIDVALIDITY changed) and needs to be scanned fully.
+     */
+    static long getLastRestoredUid(Context ctx, String folder, long uidValidity) {
+        SharedPreferences prefs = getSharedPreferences(ctx);
+        if (uidValidity < 0 ||
+            !folder.equals(prefs.getString(PREF_RESTORE_FOLDER, null)) ||
+            prefs.getLong(PREF_RESTORE_UID_VALIDITY, -1) != uidValidity) {
+            return 0;
+        }
+        return prefs.getLong(PREF_RESTORE_LAST_UID, 0);
+    }
+
+    static void setLastRestoredUid(Context ctx, String folder, long uidValidity, long uid) {
+        getSharedPreferences(ctx).edit()
+          .putString(PREF_RESTORE_FOLDER, folder)
+          .putLong(PREF_RESTORE_UID_VALIDITY, uidValidity)
+          .putLong(PREF_RESTORE_LAST_UID, uid)
+          .commit();
+    }
+
     static boolean isWifiOnly(Context ctx) {
       return (getSharedPreferences(ctx).getBoolean(PREF_WIFI_ONLY, false));
     }
 
+    static boolean isUseCompression(Context ctx) {
+      return getSharedPreferences(ctx).getBoolean(PREF_USE_COMPRESSION, DEFAULT_USE_COMPRESSION);
+    }
+
+    static boolean isWarmUpConnection(Context ctx) {
+      return getSharedPreferences(ctx).getBoolean(PREF_WARM_UP_CONNECTION, false);
+    }
+
     private static int getStringAsInt(Context ctx, String key, String def) {
         try {
           return Integer.valueOf(getSharedPreferences(ctx).getString(key, def));
@@ -334,6 +423,9 @@ public class PrefStore {
           .remove(PREF_OAUTH_TOKEN_SECRET)
           .remove(PREF_MAX_SYNCED_DATE)
           .remove(PREF_LAST_SYNC)
+          .remove(PREF_RESTORE_FOLDER)
+          .remove(PREF_RESTORE_UID_VALIDITY)
+          .remove(PREF_RESTORE_LAST_UID)
           .commit();
     }
 
@@ -0,0 +1,279 @@
+package com.zegoggles.smssync;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.IImapResponseCallback;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.jcraft.jzlib.ZInputStream;
+import com.jcraft.jzlib.ZOutputStream;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Set;
+
+/**
+ * Raw access to the connection backing an open K-9 ImapFolder.
+ *
+ * K-9's ImapConnection is package-private and only lets subclasses run
+ * complete request/response commands, which rules out anything that needs to
+ * send literals itself (APPEND, MULTIAPPEND). This wraps the connection so
+ * {@link ImapStore.BackupFolder} can write to the command stream and read
+ * responses directly.
+ */
+class RawImapConnection {
+    private static Method sSendCommand, sHasCapability, sClose, sEncodeFolderName;
+    private static Field sOut, sIn, sParser, sTag, sContinuation;
+
+    private final Object mConnection;
+
+    RawImapConnection(Object connection) throws MessagingException {
+        if (connection == null) {
+            throw new MessagingException("connection is null");
+        }
+        mConnection = connection;
+        lookup(connection.getClass());
+    }
+
+    private static synchronized void lookup(Class<?> clazz) throws MessagingException {
+        if (sSendCommand != null) return;
+        try {
+            sSendCommand   = accessible(clazz.getDeclaredMethod("sendCommand", String.class, boolean.class));
+            sHasCapability = accessible(clazz.getDeclaredMethod("hasCapability", String.class));
+            sClose         = accessible(clazz.getDeclaredMethod("close"));
+            sOut           = accessible(clazz.getDeclaredField("mOut"));
+            sIn            = accessible(clazz.getDeclaredField("mIn"));
+            sParser        = accessible(clazz.getDeclaredField("mParser"));
+            sTag           = accessible(ImapResponse.class.getDeclaredField("mTag"));
+            sContinuation  = accessible(ImapResponse.class.getDeclaredField("mCommandContinuationRequested"));
+        } catch (NoSuchMethodException e) {
+            throw new MessagingException("incompatible ImapConnection", e);
+        } catch (NoSuchFieldException e) {
+            throw new MessagingException("incompatible ImapConnection", e);
+        }
+    }
+
+    private static <T extends java.lang.reflect.AccessibleObject> T accessible(T member) {
+        member.setAccessible(true);
+        return member;
+    }
+
+    public boolean hasCapability(String capability) throws IOException, MessagingException {
+        return (Boolean) invoke(sHasCapability, capability);
+    }
+
+    /**
+     * Sends a command line and returns the tag it was sent with. The response
+     * has to be consumed with {@link #readResponse()}.
+     */
+    public String sendCommand(String command) throws IOException, MessagingException {
+        return (String) invoke(sSendCommand, command, false);
+    }
+
+    public OutputStream getOutputStream() throws MessagingException {
+        return (OutputStream) get(sOut, mConnection);
+    }
+
+    public ImapResponse readResponse() throws IOException, MessagingException {
+        return ((ImapResponseParser) get(sParser, mConnection)).readResponse();
+    }
+
+    /**
+     * Reads a response, handing literals to <code>callback</code>. Whatever the
+     * callback returns takes the place of the literal in the response.
+     */
+    public ImapResponse readResponse(IImapResponseCallback callback) throws IOException, MessagingException {
+        return ((ImapResponseParser) get(sParser, mConnection)).readResponse(callback);
+    }
+
+    /**
+     * Reads responses until the tagged completion for <code>tag</code> arrives,
+     * passing untagged responses to <code>folder</code>.
+     *
+     * @throws MessagingException if the command did not complete with OK
+     */
+    public ImapResponse readTaggedResponse(String tag, ImapStore.BackupFolder folder)
+            throws IOException, MessagingException {
+        while (true) {
+            ImapResponse response = readResponse();
+            if (tag.equals(getTag(response))) {
+                if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
+                    throw new MessagingException("Command failed: " + response);
+                }
+                return response;
+            } else if (getTag(response) == null && !isContinuation(response)) {
+                folder.handleUntagged(response);
+            }
+        }
+    }
+
+    /**
+     * Reads responses of pipelined commands until the command tagged
+     * <code>tag</code> completes or, if <code>continuation</code> is set, asks
+     * for its literal. Completions of the other commands in <code>pending</code>
+     * are consumed on the way and removed from it, untagged responses go to
+     * <code>folder</code>.
+     *
+     * @throws MessagingException if one of the commands did not complete with OK
+     */
+    public void readPipelined(String tag, boolean continuation, Set<String> pending, ImapStore.BackupFolder folder)
+            throws IOException, MessagingException {
+        while (true) {
+            ImapResponse response = readResponse();
+            String responseTag = getTag(response);
+            if (isContinuation(response)) {
+                if (continuation) return;
+                throw new MessagingException("Unexpected continuation: " + response);
+            } else if (responseTag == null) {
+                folder.handleUntagged(response);
+            } else if (pending.remove(responseTag)) {
+                if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
+                    throw new MessagingException("Command failed: " + response);
+                }
+                if (tag.equals(responseTag)) {
+                    if (continuation) {
+                        throw new MessagingException("Command completed without literal: " + response);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads responses until the server asks for a literal.
+     *
+     * @throws MessagingException if the command completed instead
+     */
+    public void readContinuation(String tag, ImapStore.BackupFolder folder)
+            throws IOException, MessagingException {
+        while (true) {
+            ImapResponse response = readResponse();
+            if (isContinuation(response)) {
+                return;
+            } else if (tag.equals(getTag(response))) {
+                throw new MessagingException("Command rejected: " + response);
+            } else {
+                folder.handleUntagged(response);
+            }
+        }
+    }
+
+    /**
+     * Installs a {@link CompressionMeter} on the connection if K-9 negotiated
+     * COMPRESS=DEFLATE for it. Returns null for uncompressed connections.
+     *
+     * With compression the streams are
+     * <code>BufferedOutputStream &gt; ZOutputStream &gt; socket</code> and
+     * <code>PeekableInputStream &gt; BufferedInputStream &gt; ZInputStream &gt; socket</code>,
+     * the meter goes around both jzlib streams.
+     */
+    public CompressionMeter meterCompression() throws MessagingException {
+        try {
+            Field filterOut = accessible(FilterOutputStream.class.getDeclaredField("out"));
+            Field filterIn  = accessible(FilterInputStream.class.getDeclaredField("in"));
+            Field zOut      = accessible(ZOutputStream.class.getDeclaredField("out"));
+            Field zIn       = accessible(ZInputStream.class.getDeclaredField("in"));
+
+            Object buffered = get(sOut, mConnection);
+            if (!(buffered instanceof FilterOutputStream)) return null;
+            Object deflater = filterOut.get(buffered);
+            if (deflater instanceof CompressionMeter.TimedOutputStream) {
+                return ((CompressionMeter.TimedOutputStream) deflater).getMeter();
+            } else if (!(deflater instanceof ZOutputStream)) {
+                return null;
+            }
+
+            Object peekable = get(sIn, mConnection);
+            Object bufferedIn = peekable != null ?
+                    accessible(peekable.getClass().getDeclaredField("mIn")).get(peekable) : null;
+            if (!(bufferedIn instanceof FilterInputStream)) return null;
+            Object inflater = filterIn.get(bufferedIn);
+            if (!(inflater instanceof ZInputStream)) return null;
+
+            CompressionMeter meter = new CompressionMeter((ZOutputStream) deflater, (ZInputStream) inflater);
+            zOut.set(deflater, meter.belowDeflater((OutputStream) zOut.get(deflater)));
+            filterOut.set(buffered, meter.aboveDeflater((OutputStream) deflater));
+            zIn.set(inflater, meter.belowInflater((InputStream) zIn.get(inflater)));
+            filterIn.set(bufferedIn, meter.aboveInflater((InputStream) inflater));
+            return meter;
+        } catch (NoSuchFieldException e) {
+            throw new MessagingException("incompatible ImapConnection", e);
+        } catch (IllegalAccessException e) {
+            throw new MessagingException("incompatible ImapConnection", e);
+        }
+    }
+
+    /** Closes the underlying socket, used after I/O errors. */
+    public void close() {
+        try {
+            invoke(sClose);
+        } catch (IOException ignored) {
+        } catch (MessagingException ignored) {
+        }
+    }
+
+    public static String getTag(ImapResponse response) throws MessagingException {
+        return (String) get(sTag, response);
+    }
+
+    public static boolean isContinuation(ImapResponse response) throws MessagingException {
+        return (Boolean) get(sContinuation, response);
+    }
+
+    /**
+     * Returns <code>name</code> as a quoted mailbox name, encoded with the
+     * store's modified UTF-7 like K-9 encodes it for SELECT and CREATE.
+     */
+    public static String quoteFolderName(com.fsck.k9.mail.store.ImapStore store, String name)
+            throws MessagingException {
+        String encoded;
+        try {
+            synchronized (RawImapConnection.class) {
+                if (sEncodeFolderName == null) {
+                    sEncodeFolderName = accessible(com.fsck.k9.mail.store.ImapStore.class
+                            .getDeclaredMethod("encodeFolderName", String.class));
+                }
+            }
+            encoded = (String) sEncodeFolderName.invoke(store, name);
+        } catch (NoSuchMethodException e) {
+            throw new MessagingException("incompatible ImapStore", e);
+        } catch (IllegalAccessException e) {
+            throw new MessagingException("incompatible ImapStore", e);
+        } catch (InvocationTargetException e) {
+            throw new MessagingException("can't encode folder name " + name, e.getCause());
+        }
+        return "\"" + encoded.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private Object invoke(Method method, Object... args) throws IOException, MessagingException {
+        try {
+            return method.invoke(mConnection, args);
+        } catch (IllegalAccessException e) {
+            throw new MessagingException("incompatible ImapConnection", e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof MessagingException) {
+                throw (MessagingException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MessagingException(String.valueOf(cause), cause);
+        }
+    }
+
+    private static Object get(Field field, Object target) throws MessagingException {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new MessagingException("incompatible ImapConnection", e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.zegoggles.smssync;
+
+import org.apache.james.mime4j.codec.EncoderUtil;
+import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes text/plain messages in RFC 822 format straight into a growable byte
+ * buffer, ready to be sent as an IMAP literal.
+ *
+ * Produces the same output as building a K-9 MimeMessage with a TextBody and
+ * serializing it through an EOLConvertingOutputStream, without the
+ * intermediate header objects, writers and streams. Bodies which are short
+ * printable ASCII lines (most SMS) are identical to their quoted-printable
+ * encoding and are copied without going through the encoder.
+ *
+ * The buffer is reused: several messages are written one after the other and
+ * handed out together with {@link #drain()}. Not thread-safe.
+ */
+class Rfc822Writer extends OutputStream {
+    /** Longest line the quoted-printable encoder leaves untouched. */
+    private static final int MAX_PLAIN_LINE = 75;
+
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+
+    private byte[] mBuf;
+    private int mCount;
+    private int mLast = -1;
+
+    Rfc822Writer(int initialCapacity) {
+        mBuf = new byte[initialCapacity];
+    }
+
+    /** Number of bytes written since the last {@link #drain()}. */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns everything written so far as one array and resets the writer,
+     * keeping its buffer for the next messages.
+     */
+    byte[] drain() {
+        byte[] out = new byte[mCount];
+        System.arraycopy(mBuf, 0, out, 0, mCount);
+        mCount = 0;
+        mLast = -1;
+        return out;
+    }
+
+    /**
+     * Writes a header line. Null values are skipped, values with non-ASCII
+     * characters are written as encoded words.
+     */
+    void header(String name, String value) {
+        if (value == null) return;
+        writeAscii(name);
+        writeAscii(": ");
+        writeAscii(needsEncoding(value) ?
+                EncoderUtil.encodeEncodedWord(value, EncoderUtil.Usage.WORD_ENTITY) : value);
+        writeAscii("\r\n");
+    }
+
+    void dateHeader(String name, Date date) {
+        header(name, mDateFormat.format(date));
+    }
+
+    /** Writes the MIME headers for a quoted-printable UTF-8 text body. */
+    void textBodyHeaders() {
+        header("MIME-Version", "1.0");
+        header("Content-Type", "text/plain;\r\n charset=utf-8");
+        header("Content-Transfer-Encoding", "quoted-printable");
+    }
+
+    /**
+     * Ends the header and writes the body. Has to follow
+     * {@link #textBodyHeaders} and all other headers.
+     */
+    void body(String text) throws IOException {
+        writeAscii("\r\n");
+        if (text == null) return;
+
+        if (isPlainLine(text)) {
+            writeAscii(text);
+        } else {
+            QuotedPrintableOutputStream qp = new QuotedPrintableOutputStream(this, false);
+            qp.write(text.getBytes("UTF-8"));
+            qp.flush();
+        }
+    }
+
+    private static boolean needsEncoding(String value) {
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if ((c < 32 || c > 126) && c != '\n' && c != '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPlainLine(String text) {
+        int n = text.length();
+        if (n > MAX_PLAIN_LINE) return false;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if ((c < 32 && c != '\t') || c > 126 || c == '=') {
+                return false;
+            }
+        }
+        return n == 0 || (text.charAt(n - 1) != ' ' && text.charAt(n - 1) != '\t');
+    }
+
+    /** Writes 7 bit characters, see {@link #write(int)}. */
+    private void writeAscii(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    /**
+     * Appends a byte, converting bare CR and LF to CRLF like K-9's
+     * EOLConvertingOutputStream.
+     */
+    @Override
+    public void write(int b) {
+        if (b == '\n' && mLast != '\r') {
+            put('\r');
+        } else if (mLast == '\r' && b != '\n') {
+            put('\n');
+        }
+        put(b);
+        mLast = b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    /**
+     * Terminates a message ending in a bare CR, like the EOL conversion does
+     * on flush.
+     */
+    void endMessage() {
+        if (mLast == '\r') {
+            put('\n');
+        }
+        mLast = -1;
+    }
+
+    private void put(int b) {
+        if (mCount == mBuf.length) {
+            byte[] grown = new byte[mBuf.length * 2];
+            System.arraycopy(mBuf, 0, grown, 0, mCount);
+            mBuf = grown;
+        }
+        mBuf[mCount++] = (byte) b;
+    }
+}
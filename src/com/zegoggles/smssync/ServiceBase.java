@@ -13,6 +13,9 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 
@@ -57,6 +60,12 @@ public abstract class ServiceBase extends Service {
      */
     protected WifiManager.WifiLock sWifiLock;
 
+    /**
+     * Journal holding the max synced date while a backup or restore is
+     * running, see {@link #openCheckpoint(String)}.
+     */
+    private volatile CheckpointJournal mCheckpoint;
+
     /**
      * Returns a description of the last error. Only valid if
      * <code>{@link #getState()} == {@link SmsSyncState#GENERAL_ERROR}</code>.
@@ -84,7 +93,10 @@ public abstract class ServiceBase extends Service {
     protected ImapStore.BackupFolder getBackupFolder()
             throws AuthenticationErrorException {
         try {
-            return new ImapStore(this).getBackupFolder();
+            ImapStore.BackupFolder folder = ConnectionPool.acquire(this);
+            // start measuring before anything is sent
+            folder.getCompressionMeter();
+            return folder;
         } catch (IllegalArgumentException e) {
             throw new AuthenticationErrorException(e);
         } catch (MessagingException e) {
@@ -92,6 +104,43 @@ public abstract class ServiceBase extends Service {
         }
     }
 
+    /**
+     * Opens up to <code>count</code> connections to the backup folder. Only a
+     * failure to open the first one is fatal, the caller continues with
+     * fewer connections otherwise.
+     */
+    protected List<ImapStore.BackupFolder> getBackupFolders(int count) throws AuthenticationErrorException {
+        List<ImapStore.BackupFolder> folders = new ArrayList<ImapStore.BackupFolder>(count);
+        folders.add(getBackupFolder());
+        for (int i = 1; i < count; i++) {
+            try {
+                folders.add(getBackupFolder());
+            } catch (AuthenticationErrorException e) {
+                Log.w(Consts.TAG, "Could only open " + folders.size() + " of " + count + " connections", e);
+                break;
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Hands the folders back to the {@link ConnectionPool} for the next sync or,
+     * unless <code>reuse</code>, closes their connections.
+     */
+    protected void releaseBackupFolders(List<ImapStore.BackupFolder> folders, boolean reuse) {
+        CompressionMeter.Totals compression = new CompressionMeter.Totals();
+        for (ImapStore.BackupFolder folder : folders) {
+            CompressionMeter meter = folder.getCompressionMeter();
+            if (meter != null) {
+                compression.add(meter);
+            }
+            ConnectionPool.release(folder, reuse);
+        }
+        if (!compression.isEmpty()) {
+            Log.i(Consts.TAG, "Compression: " + compression);
+        }
+    }
+
     protected void acquireLocks() throws GeneralErrorException {
         if (sWakeLock == null) {
             PowerManager pMgr = (PowerManager) getSystemService(POWER_SERVICE);
@@ -157,21 +206,51 @@ public abstract class ServiceBase extends Service {
      * with the server.
      */
     protected long getMaxSyncedDate() {
-        return PrefStore.getMaxSyncedDate(this);
+        CheckpointJournal checkpoint = mCheckpoint;
+        return checkpoint != null ? checkpoint.getWatermark() : PrefStore.getMaxSyncedDate(this);
     }
 
     /**
      * Persists the provided ID so it can later on be retrieved using
      * {@link #getMaxSyncedDate()}. This should be called when after each
-     * successful sync request to a server.
+     * successful sync request to a server. Between {@link #openCheckpoint(String)}
+     * and {@link #closeCheckpoint()} the date goes to the checkpoint journal
+     * instead of the preferences.
      *
      * @param maxSyncedId
      */
     protected void updateMaxSyncedDate(long maxSyncedDate) {
-        PrefStore.setMaxSyncedDate(this, maxSyncedDate);
+        CheckpointJournal checkpoint = mCheckpoint;
+        if (checkpoint != null) {
+            checkpoint.record(maxSyncedDate);
+        } else {
+            PrefStore.setMaxSyncedDate(this, maxSyncedDate);
+        }
         Log.d(Consts.TAG, "Max synced date set to: " + maxSyncedDate);
     }
 
+    /**
+     * Starts recording max synced date updates in a {@link CheckpointJournal},
+     * recovering the journal of a previous run if there is one.
+     *
+     * @param name the journal of this service, {@link CheckpointJournal#BACKUP}
+     *             or {@link CheckpointJournal#RESTORE}
+     */
+    protected void openCheckpoint(String name) {
+        mCheckpoint = CheckpointJournal.open(this, name);
+    }
+
+    /**
+     * Compacts the checkpoint journal into the preferences.
+     */
+    protected void closeCheckpoint() {
+        CheckpointJournal checkpoint = mCheckpoint;
+        mCheckpoint = null;
+        if (checkpoint != null) {
+            checkpoint.compact();
+        }
+    }
+
     public ConnectivityManager getConnectivityManager() {
         return (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
     }
@@ -18,6 +18,8 @@ package com.zegoggles.smssync;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.util.Log;
 
 public class SmsBroadcastReceiver extends BroadcastReceiver {
@@ -25,9 +27,23 @@ public class SmsBroadcastReceiver extends BroadcastReceiver {
     public void onReceive(Context ctx, Intent intent) {
         if (!PrefStore.isFirstSync(ctx) && PrefStore.isLoginInformationSet(ctx)) {
             Alarms.scheduleIncomingSync(ctx);
+
+            if (PrefStore.isWarmUpConnection(ctx) && PrefStore.isEnableAutoSync(ctx) &&
+                !SmsRestoreService.isWorking() && isOnline(ctx)) {
+                // log in while waiting, the sync can then start right away
+                ConnectionPool.warmUp(ctx, PrefStore.getIncomingTimeoutSecs(ctx) * 1000L);
+            }
         } else {
             Log.i(Consts.TAG, "Received SMS but not ready to sync.");
         }
     }
 
+    private boolean isOnline(Context ctx) {
+        ConnectivityManager cMgr = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (!cMgr.getBackgroundDataSetting()) return false;
+
+        NetworkInfo info = cMgr.getActiveNetworkInfo();
+        return info != null && info.isConnected() &&
+               (!PrefStore.isWifiOnly(ctx) || info.getType() == ConnectivityManager.TYPE_WIFI);
+    }
 }
@@ -9,7 +9,9 @@ import android.util.Log;
 import com.fsck.k9.mail.*;
 import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import org.apache.commons.io.IOUtils;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.io.File;
 import java.io.FilenameFilter;
@@ -20,6 +22,14 @@ import static com.zegoggles.smssync.ServiceBase.SmsSyncState.*;
 public class SmsRestoreService extends ServiceBase {
 
     public static final String TAG = "SmsRestoreService";
+
+    /**
+     * Number of messages restored at a time: their headers are fetched with
+     * one command, then the bodies of the ones missing on the phone.
+     */
+    private static final int RESTORE_WINDOW = 500;
+    /** Messages whose threads are looked up with one query, two arguments each (SQLite allows 999). */
+    private static final int THREAD_LOOKUP_BATCH = 200;
     private static int currentRestoredItems;
     private static int itemsToRestoreCount;
 
@@ -29,6 +39,9 @@ public class SmsRestoreService extends ServiceBase {
 
     public static int restoredCount, duplicateCount;
 
+    /** Insert throughput of the last restore. */
+    public static int insertsPerSecond;
+
     public static void cancel() {
         sCanceled = true;
     }
@@ -50,61 +63,125 @@ public class SmsRestoreService extends ServiceBase {
     }
 
     class RestoreTask extends AsyncTask<Integer, Integer, Integer> {
-        private Set<String> insertedIds = new HashSet<String>();
-        private Set<String> uids = new HashSet<String>();
+        private int inserted;
+        /** Messages waiting to be inserted with the next {@link #flushInserts()} */
+        private List<ContentValues> pending = new ArrayList<ContentValues>();
+        private long insertTime;
+        /** Number of messages on the server checked so far */
+        private int checked;
+        /** Threads messages have been restored to */
+        private Set<Long> threadIds = new HashSet<Long>();
+        private boolean threadsUnknown;
+        /** Whether some messages could not be restored, they have to be retried by the next restore */
+        private boolean failed;
+        /** Messages on the phone, including the ones restored so far */
+        private MessageIndex existing;
         private int max;
+        /** Whether the restore finished or was canceled without errors, the connections can be reused then */
+        private boolean stopped;
 
         protected java.lang.Integer doInBackground(Integer... params) {
             this.max = params.length > 0 ? params[0] : -1;
 
+            List<ImapStore.BackupFolder> folders = new ArrayList<ImapStore.BackupFolder>();
+            ParallelFetcher fetcher = null;
             try {
                 acquireLocks();
                 sIsRunning = true;
+                openCheckpoint(CheckpointJournal.RESTORE);
 
                 updateState(LOGIN);
-                ImapStore.BackupFolder folder = getBackupFolder();
+                folders = getBackupFolders(PrefStore.getRestoreConnections(SmsRestoreService.this));
+                ImapStore.BackupFolder folder = folders.get(0);
 
                 updateState(CALC);
 
-                Message[] msgs;
-                if (max > 0) {
-                    msgs = folder.getMessagesSince(null, max);
-                } else {
-                    msgs = folder.getMessages(null);
-                }
-
-                itemsToRestoreCount = max == -1 ? msgs.length : Math.min(msgs.length, max);
-
-                long lastPublished = System.currentTimeMillis();
-                for (int i = 0; i < itemsToRestoreCount; i++) {
+                // only look at messages added since the last complete restore,
+                // unless the folder has been recreated in the meantime
+                String folderName = PrefStore.getImapFolder(SmsRestoreService.this);
+                long uidValidity = folder.getUidValidity();
+                long lastUid = PrefStore.getLastRestoredUid(SmsRestoreService.this, folderName, uidValidity);
+                Log.d(TAG, lastUid > 0 ? "incremental restore after UID " + lastUid :
+                        "full restore (UIDVALIDITY " + uidValidity + ")");
+
+                long[] uids = folder.getUidsSince(lastUid, null, max > 0 ? max : -1);
+                long highestUid = uids.length > 0 ? Math.max(lastUid, uids[uids.length - 1]) : lastUid;
+                itemsToRestoreCount = uids.length;
+
+                existing = getExistingMessages();
+                int batchSize = PrefStore.getRestoreBatchSize(SmsRestoreService.this);
+                BodyPool pool = new BodyPool(batchSize * ParallelFetcher.WINDOW_PER_CONNECTION * folders.size(),
+                        getCacheDir());
+
+                // walk the UIDs in windows, only one window of messages is kept at a time
+                long started = System.currentTimeMillis();
+                long lastPublished = started;
+                int fetched = 0;
+                for (int start = 0; start < uids.length; start += RESTORE_WINDOW) {
                     if (sCanceled) {
-                        Log.i(TAG, "Restore canceled by user.");
-                        updateState(CANCELED);
-
-                        updateAllThreads();
-                        return insertedIds.size();
+                        return cancel();
                     }
-                    importMessage(msgs[i]);
-
-                    // help GC
-                    msgs[i] = null;
-
-                    if (System.currentTimeMillis() - lastPublished > 1000) {
-                        // don't publish too often or we get ANRs
-                        publishProgress(i);
-                        lastPublished = System.currentTimeMillis();
+                    Message[] window = folder.getMessages(uids, start, Math.min(start + RESTORE_WINDOW, uids.length));
+
+                    // first only fetch the headers identifying each message and skip
+                    // the ones already on the phone, then fetch the bodies of the rest
+                    folder.fetchHeaders(window, DATE, ADDRESS, TYPE);
+                    List<Message> missing = new ArrayList<Message>();
+                    for (Message message : window) {
+                        if (isMissing(message)) {
+                            missing.add(message);
+                        }
                     }
-
-                    if (i % 50 == 0) {
-                      //clear cache periodically otherwise SD card fills up
-                      clearCache();
+                    checked += window.length;
+                    Log.d(TAG, missing.size() + " of " + window.length + " messages need to be restored");
+
+                    // bodies are fetched over all connections, this thread does the inserts
+                    fetcher = new ParallelFetcher(folders, missing, batchSize, pool);
+                    fetcher.start();
+
+                    int done = 0;
+                    Message[] batch;
+                    while ((batch = fetcher.next()) != null) {
+                        if (sCanceled) {
+                            return cancel();
+                        }
+
+                        for (int i = 0; i < batch.length; i++) {
+                            importMessage(batch[i]);
+
+                            // help GC
+                            batch[i] = null;
+
+                            if (System.currentTimeMillis() - lastPublished > 1000) {
+                                // don't publish too often or we get ANRs
+                                publishProgress(start + (done + i) * window.length / missing.size());
+                                lastPublished = System.currentTimeMillis();
+                            }
+                        }
+                        done += batch.length;
+
+                        flushInserts();
                     }
+                    fetcher.stop();
+                    fetcher = null;
+                    fetched += done;
                 }
+                long elapsed = Math.max(1, System.currentTimeMillis() - started);
+                Log.i(TAG, "Fetched " + fetched + " of " + uids.length + " messages in " + elapsed + "ms over " +
+                        folders.size() + " connection(s), " + (fetched * 1000L / elapsed) + " messages/s, " +
+                        pool.getSpilled() + " large bodies spilled to disk");
                 publishProgress(itemsToRestoreCount);
 
+                // a restore limited to the newest messages skipped the older ones
+                if (uidValidity >= 0 && max <= 0 && !failed) {
+                    PrefStore.setLastRestoredUid(SmsRestoreService.this, folderName, uidValidity, highestUid);
+                } else {
+                    Log.d(TAG, "not recording last restored UID" + (failed ? " (failed messages)" : ""));
+                }
                 updateAllThreads();
 
-                return insertedIds.size();
+                stopped = true;
+                return inserted;
             } catch (GeneralErrorException error) {
                 Log.e(TAG, "error", error);
                 sLastError = error.getLocalizedMessage();
@@ -118,13 +195,51 @@ public class SmsRestoreService extends ServiceBase {
                 Log.e(TAG, "error", e);
                 updateState(GENERAL_ERROR);
                 return -1;
+            } catch (InterruptedException e) {
+                Log.e(TAG, "error", e);
+                updateState(GENERAL_ERROR);
+                return -1;
             } finally {
+                if (fetcher != null) {
+                    fetcher.stop();
+                }
+                releaseBackupFolders(folders, stopped);
+                closeCheckpoint();
                 releaseLocks();
                 sCanceled = false;
                 sIsRunning = false;
             }
         }
 
+        private int cancel() {
+            stopped = true;
+            flushInserts();
+            Log.i(TAG, "Restore canceled by user.");
+            updateState(CANCELED);
+
+            updateAllThreads();
+            return inserted;
+        }
+
+        /**
+         * Returns whether a message only fetched with its identifying headers
+         * should be restored.
+         */
+        private boolean isMissing(Message message) {
+            String type = getHeader(message, TYPE);
+            if (type == null) return false;
+            try {
+                int t = Integer.parseInt(type.trim());
+                // only restore inbox messages and sent messages - otherwise sms might get sent on restore
+                if (t != SmsConsts.MESSAGE_TYPE_INBOX && t != SmsConsts.MESSAGE_TYPE_SENT) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return !existing.contains(getHeader(message, DATE), getHeader(message, ADDRESS), type);
+        }
+
         @Override
         protected void onProgressUpdate(Integer... progress) {
             currentRestoredItems = progress[0];
@@ -134,41 +249,138 @@ public class SmsRestoreService extends ServiceBase {
         @Override
         protected void onPostExecute(Integer result) {
             if (result != -1) {
-                Log.d(TAG, "finished (" + result + "/" + uids.size() + ")");
                 restoredCount = result;
-                duplicateCount = uids.size() - result;
+                duplicateCount = checked - result;
+                insertsPerSecond = insertTime > 0 ? (int) (result * 1000L / insertTime) : 0;
+                Log.d(TAG, "finished (" + result + "/" + checked + "), " + insertsPerSecond + " inserts/s");
                 updateState(IDLE);
             }
         }
 
         private void updateAllThreads() {
-            // thread dates + states might be wrong, we need to force a full update
-            // unfortunately there's no direct way to do that in the SDK, but passing a negative conversation
-            // id to delete will to the trick
+            // thread dates + states might be wrong, we need to force an update of the threads
+            // messages were added to. unfortunately there's no direct way to do that in the SDK,
+            // but deleting nothing from a conversation updates its thread, and passing a negative
+            // conversation id will update all of them
 
-            if (insertedIds.isEmpty())
+            if (inserted == 0)
                 return;
 
+            final Set<Long> threads = threadsUnknown ? null : new HashSet<Long>(threadIds);
+
             // execute in background, might take some time
             new Thread() {
                 @Override
                 public void run() {
-                    Log.d(TAG, "updating threads");
+                    if (threads != null) {
+                        Log.d(TAG, "updating " + threads.size() + " threads");
+                        try {
+                            for (Long threadId : threads) {
+                                getContentResolver().delete(Uri.parse("content://sms/conversations/" + threadId),
+                                        SmsConsts.ID + " = -1", null);
+                            }
+                            Log.d(TAG, "finished");
+                            return;
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "error updating threads, updating all of them", e);
+                        }
+                    }
+                    Log.d(TAG, "updating all threads");
                     getContentResolver().delete(Uri.parse("content://sms/conversations/-1"), null, null);
                     Log.d(TAG, "finished");
                 }
             }.start();
         }
 
-        private void importMessage(Message message) {
-            uids.add(message.getUid());
+        /**
+         * Records the threads the provider assigned to the given messages,
+         * looked up by date and address. If they can't be looked up, all
+         * threads get updated at the end.
+         */
+        private void rememberThreads(ContentValues[] values) {
+            for (int start = 0; start < values.length && !threadsUnknown; start += THREAD_LOOKUP_BATCH) {
+                int end = Math.min(start + THREAD_LOOKUP_BATCH, values.length);
+                StringBuilder selection = new StringBuilder();
+                List<String> args = new ArrayList<String>((end - start) * 2);
+                for (int i = start; i < end; i++) {
+                    String address = values[i].getAsString(SmsConsts.ADDRESS);
+                    if (selection.length() > 0) selection.append(" OR ");
+                    selection.append('(').append(SmsConsts.DATE).append(" = ? AND ").append(SmsConsts.ADDRESS)
+                             .append(address == null ? " IS NULL)" : " = ?)");
+                    args.add(values[i].getAsString(SmsConsts.DATE));
+                    if (address != null) args.add(address);
+                }
+                rememberThreads(selection.toString(), args.toArray(new String[args.size()]));
+            }
+        }
+
+        private void rememberThreads(String selection, String[] args) {
+            try {
+                Cursor c = getContentResolver().query(SMS_PROVIDER, new String[] { SmsConsts.THREAD_ID },
+                        selection, args, null);
+                if (c == null) {
+                    threadsUnknown = true;
+                    return;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        threadIds.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "error looking up threads", e);
+                threadsUnknown = true;
+            }
+        }
+
+        /**
+         * Inserts the pending messages with a single bulk insert. If that fails
+         * part way, the messages of the batch are inserted one by one, skipping
+         * (but counting) the ones which already made it.
+         */
+        private void flushInserts() {
+            if (pending.isEmpty()) return;
+
+            long started = System.currentTimeMillis();
+            ContentValues[] values = pending.toArray(new ContentValues[pending.size()]);
+            pending.clear();
+
+            long maxDate = PrefStore.DEFAULT_MAX_SYNCED_DATE;
+            for (ContentValues v : values) {
+                Long date = v.getAsLong(SmsConsts.DATE);
+                if (date != null) maxDate = Math.max(maxDate, date);
+            }
+            try {
+                inserted += getContentResolver().bulkInsert(SMS_PROVIDER, values);
+            } catch (RuntimeException e) {
+                // http://code.google.com/p/android/issues/detail?id=2916
+                Log.w(TAG, "bulk insert of " + values.length + " messages failed, inserting separately", e);
+                for (ContentValues v : values) {
+                    try {
+                        // rows found here went in with the failed bulk insert
+                        if (!smsExists(v)) {
+                            getContentResolver().insert(SMS_PROVIDER, v);
+                        }
+                        inserted++;
+                    } catch (RuntimeException e2) {
+                        Log.e(TAG, "error", e2);
+                        failed = true;
+                    }
+                }
+            }
+            insertTime += System.currentTimeMillis() - started;
+            Log.d(TAG, "inserted " + values.length + " messages in " + (System.currentTimeMillis() - started) + "ms");
+            rememberThreads(values);
 
-            FetchProfile fp = new FetchProfile();
-            fp.add(FetchProfile.Item.BODY);
+            if (getMaxSyncedDate() < maxDate) {
+                updateMaxSyncedDate(maxDate);
+            }
+        }
 
+        private void importMessage(Message message) {
             try {
-                Log.d(TAG, "fetching message uid " + message.getUid());
-                message.getFolder().fetch(new Message[]{message}, fp, null);
                 ContentValues values = messageToContentValues(message);
 
                 Integer type = values.getAsInteger(SmsConsts.TYPE);
@@ -176,27 +388,31 @@ public class SmsRestoreService extends ServiceBase {
                     return;
 
                 // only restore inbox messages and sent messages - otherwise sms might get sent on restore
-                if ((type == SmsConsts.MESSAGE_TYPE_INBOX || type == SmsConsts.MESSAGE_TYPE_SENT) && !smsExists(values)) {
-                    Uri uri = getContentResolver().insert(SMS_PROVIDER, values);
-                    insertedIds.add(uri.getLastPathSegment());
-
-                    long timestamp = values.getAsLong(SmsConsts.DATE);
-
-                    if (getMaxSyncedDate() < timestamp) {
-                        updateMaxSyncedDate(timestamp);
-                    }
-                    Log.d(TAG, "inserted " + uri);
+                if ((type == SmsConsts.MESSAGE_TYPE_INBOX || type == SmsConsts.MESSAGE_TYPE_SENT) &&
+                    existing.add(values.getAsString(SmsConsts.DATE), values.getAsString(SmsConsts.ADDRESS),
+                                 values.getAsString(SmsConsts.TYPE))) {
+                    pending.add(values);
                 } else {
                     Log.d(TAG, "ignoring sms");
                 }
 
-            } catch (IllegalArgumentException e) {
-                // http://code.google.com/p/android/issues/detail?id=2916
-                Log.e(TAG, "error", e);
             } catch (java.io.IOException e) {
                 Log.e(TAG, "error", e);
+                failed = true;
             } catch (MessagingException e) {
                 Log.e(TAG, "error", e);
+                failed = true;
+            } finally {
+                releaseBody(message);
+            }
+        }
+
+        private void releaseBody(Message message) {
+            try {
+                if (message.getBody() instanceof PooledBody) {
+                    ((PooledBody) message.getBody()).release();
+                }
+            } catch (MessagingException ignored) {
             }
         }
     }
@@ -248,6 +464,28 @@ public class SmsRestoreService extends ServiceBase {
         return exists;
     }
 
+    /**
+     * Returns an index of all messages on the phone. Like before, two messages
+     * are assumed to be equal if date, address and type match.
+     */
+    private MessageIndex getExistingMessages() {
+        long started = System.currentTimeMillis();
+        Cursor c = getContentResolver().query(SMS_PROVIDER,
+                new String[]{SmsConsts.DATE, SmsConsts.ADDRESS, SmsConsts.TYPE}, null, null, null);
+        MessageIndex index = new MessageIndex(c != null ? c.getCount() : 0);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    index.add(c.getString(0), c.getString(1), c.getString(2));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Log.d(TAG, "indexed " + index.size() + " messages in " + (System.currentTimeMillis() - started) +
+                "ms, using " + (index.getMemoryUsage() / 1024) + "KB");
+        return index;
+    }
 
     private ContentValues messageToContentValues(Message message)
             throws java.io.IOException, MessagingException {
@@ -256,6 +494,11 @@ public class SmsRestoreService extends ServiceBase {
           throw new MessagingException("message is null");
         }
 
+        if (message.getBody() == null) {
+          // the server didn't return it
+          throw new MessagingException("message " + message.getUid() + " has no body");
+        }
+
         java.io.InputStream is = message.getBody().getInputStream();
 
         if (is == null) {
@@ -0,0 +1,107 @@
+package com.zegoggles.smssync;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+/**
+ * Reads the messages which need a backup in fixed-size pages, ordered by
+ * date.
+ *
+ * Each page is a separate query which continues after the last row of the
+ * previous page (keyset pagination on <code>(date, _id)</code>), so no cursor
+ * needs to stay open while messages are being uploaded. Only the columns
+ * used by {@link CursorToMessage} are fetched.
+ */
+class SmsScanner {
+    static final String[] PROJECTION = new String[] {
+        SmsConsts.ID,
+        SmsConsts.ADDRESS,
+        SmsConsts.BODY,
+        SmsConsts.TYPE,
+        SmsConsts.DATE,
+        SmsConsts.THREAD_ID,
+        SmsConsts.READ,
+        SmsConsts.STATUS,
+        SmsConsts.PROTOCOL,
+        SmsConsts.SERVICE_CENTER
+    };
+
+    private static final String SELECTION = String.format("(%s > ? OR (%s = ? AND %s > ?)) AND %s <> ?",
+            SmsConsts.DATE, SmsConsts.DATE, SmsConsts.ID, SmsConsts.TYPE);
+
+    private static final String ORDER = SmsConsts.DATE + ", " + SmsConsts.ID;
+
+    private final ContentResolver mResolver;
+    private final int mPageSize;
+    private final int mMaxItems;
+
+    private long mLastDate;
+    private long mLastId = Long.MAX_VALUE;
+    private int mScanned;
+    private boolean mDone;
+
+    /**
+     * @param since     only messages newer than this date are returned
+     * @param maxItems  maximum number of messages to return, or -1 for all
+     * @param pageSize  number of rows per query
+     */
+    SmsScanner(ContentResolver resolver, long since, int maxItems, int pageSize) {
+        mResolver = resolver;
+        mLastDate = since;
+        mMaxItems = maxItems > 0 ? maxItems : Integer.MAX_VALUE;
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Returns the number of messages this scanner will return in total.
+     */
+    int count() {
+        Cursor c = query(new String[] { SmsConsts.ID }, mMaxItems < Integer.MAX_VALUE ? mMaxItems : -1);
+        if (c == null) return 0;
+        try {
+            return Math.min(c.getCount(), mMaxItems);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns a cursor over the next page of messages, positioned before the
+     * first row, or null if there are no more messages. The caller has to
+     * close it.
+     */
+    Cursor nextPage() {
+        if (mDone || mScanned >= mMaxItems) return null;
+
+        int limit = Math.min(mPageSize, mMaxItems - mScanned);
+        Cursor page = query(PROJECTION, limit);
+        if (page == null) {
+            mDone = true;
+            return null;
+        }
+        if (!page.moveToLast()) {
+            page.close();
+            mDone = true;
+            return null;
+        }
+        mLastDate = page.getLong(page.getColumnIndex(SmsConsts.DATE));
+        mLastId   = page.getLong(page.getColumnIndex(SmsConsts.ID));
+        mScanned += page.getCount();
+        if (page.getCount() < limit) {
+            mDone = true;
+        }
+        page.moveToPosition(-1);
+        return page;
+    }
+
+    private Cursor query(String[] projection, int limit) {
+        return mResolver.query(ServiceBase.SMS_PROVIDER, projection, SELECTION,
+                new String[] {
+                    String.valueOf(mLastDate),
+                    String.valueOf(mLastDate),
+                    String.valueOf(mLastId),
+                    String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT)
+                },
+                limit > 0 ? ORDER + " LIMIT " + limit : ORDER);
+    }
+}
@@ -81,7 +81,9 @@ public class SmsSync extends PreferenceActivity {
       ACCESS_TOKEN_ERROR,
       CONNECT,
       CONNECT_TOKEN_ERROR,
-      UPGRADE
+      UPGRADE,
+      FIND_DUPLICATES,
+      DUPLICATES
     }
 
     private StatusPreference mStatusPref;
@@ -94,6 +96,11 @@ public class SmsSync extends PreferenceActivity {
     private Mode mode = Mode.NONE;
     private Uri authorizeUri = null;
 
+    /** Result of the last {@link FindDuplicatesTask}, shown by {@link Dialogs#DUPLICATES} */
+    private int duplicates;
+    private boolean duplicatesDryRun;
+    private String duplicatesError;
+
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -159,6 +166,13 @@ public class SmsSync extends PreferenceActivity {
             case R.id.about:
                 show(Dialogs.ABOUT);
                 return true;
+            case R.id.find_duplicates:
+                if (SmsSyncService.isWorking() || SmsRestoreService.isWorking()) {
+                    Toast.makeText(this, R.string.ui_dialog_duplicates_busy_msg, Toast.LENGTH_LONG).show();
+                } else {
+                    new FindDuplicatesTask().execute(true);
+                }
+                return true;
              default:
                 return super.onOptionsItemSelected(item);
         }
@@ -362,6 +376,10 @@ public class SmsSync extends PreferenceActivity {
                                                 SmsRestoreService.restoredCount,
                                                 SmsRestoreService.restoredCount,
                                                 SmsRestoreService.duplicateCount);
+                                    if (SmsRestoreService.insertsPerSecond > 0) {
+                                        statusDetails += " " + getString(R.string.status_restore_rate_details,
+                                                SmsRestoreService.insertsPerSecond);
+                                    }
 
                                     progressIndeterminate = false;
                                     status = STATUS_DONE;
@@ -694,6 +712,33 @@ public class SmsSync extends PreferenceActivity {
                 title = getString(R.string.ui_dialog_upgrade_title);
                 msg = getString(R.string.ui_dialog_upgrade_msg);
                 break;
+           case FIND_DUPLICATES:
+                ProgressDialog find = new ProgressDialog(this);
+                find.setTitle(null);
+                find.setMessage(getString(R.string.ui_dialog_find_duplicates_msg));
+                find.setIndeterminate(true);
+                find.setCancelable(false);
+                return find;
+           case DUPLICATES:
+                title = getString(R.string.ui_dialog_duplicates_title);
+                if (duplicatesError != null) {
+                    msg = getString(R.string.ui_dialog_duplicates_error_msg, duplicatesError);
+                } else if (duplicatesDryRun && duplicates > 0) {
+                    return new AlertDialog.Builder(this)
+                        .setTitle(title)
+                        .setMessage(getString(R.string.ui_dialog_duplicates_found_msg, duplicates))
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .setPositiveButton(R.string.ui_delete, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                new FindDuplicatesTask().execute(false);
+                            }
+                        }).create();
+                } else if (duplicatesDryRun) {
+                    msg = getString(R.string.ui_dialog_duplicates_none_msg);
+                } else {
+                    msg = getString(R.string.ui_dialog_duplicates_deleted_msg, duplicates);
+                }
+                break;
             default:
                 return null;
         }
@@ -841,6 +886,52 @@ public class SmsSync extends PreferenceActivity {
         }
     }
 
+    /**
+     * Looks for messages backed up more than once, and deletes them if the
+     * parameter is false. The result is shown with {@link Dialogs#DUPLICATES},
+     * which after a dry run asks whether to delete them.
+     */
+    class FindDuplicatesTask extends android.os.AsyncTask<Boolean, Void, Integer> {
+        private boolean dryRun;
+        private String error;
+
+        @Override
+        protected void onPreExecute() {
+            show(Dialogs.FIND_DUPLICATES);
+        }
+
+        protected Integer doInBackground(Boolean... params) {
+            dryRun = params[0];
+            ImapStore.BackupFolder folder = null;
+            try {
+                folder = ConnectionPool.acquire(SmsSync.this);
+                int count = folder.deleteDuplicates(dryRun);
+                ConnectionPool.release(folder, true);
+                folder = null;
+                return count;
+            } catch (Exception e) {
+                Log.e(TAG, "error finding duplicates", e);
+                error = e.getMessage() != null ? e.getMessage() : e.toString();
+                return -1;
+            } finally {
+                if (folder != null) {
+                    ConnectionPool.release(folder, false);
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            dismiss(Dialogs.FIND_DUPLICATES);
+            duplicates = count;
+            duplicatesDryRun = dryRun;
+            duplicatesError = error;
+            // the message depends on the result
+            removeDialog(Dialogs.DUPLICATES.ordinal());
+            show(Dialogs.DUPLICATES);
+        }
+    }
+
     private void notifyUser(int icon, String shortText, String title, String text) {
         Notification n = new Notification(icon, shortText, System.currentTimeMillis());
         n.setLatestEventInfo(this,
@@ -17,11 +17,8 @@ package com.zegoggles.smssync;
 
 import android.content.ContentResolver;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Process;
 import android.util.Log;
-import com.fsck.k9.mail.Folder;
-import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.zegoggles.smssync.CursorToMessage.ConversionResult;
 import com.zegoggles.smssync.ServiceBase.SmsSyncState;
@@ -31,9 +28,6 @@ import java.util.List;
 
 public class SmsSyncService extends ServiceBase {
 
-    /** Number of messages sent per sync request. */
-    private static final int MAX_MSG_PER_REQUEST = 1;
-
     /** Flag indicating whether this service is already running. */
     // Should this be split into sIsRunning and sIsWorking? One for the
     // service, the other for the actual backing up?
@@ -171,10 +165,12 @@ public class SmsSyncService extends ServiceBase {
      * <li>{@link SmsSyncState#LOGIN}: An SSL connection is opened to the Gmail IMAP
      * server using the user provided credentials.</li>
      * <li>{@link SmsSyncState#SYNC}: The messages determined in step #1 are
-     * sent to the server, possibly in chunks of a maximum of
-     * {@link #MAX_MSG_PER_REQUEST} per request. After each successful sync
-     * request, the maximum ID of synced messages is updated such that future
-     * syncs will skip.</li>
+     * converted by a {@link ConversionPipeline} and sent to the server in
+     * batches of {@link PrefStore#getBackupBatchSize} messages per request
+     * (see {@link ImapStore.BackupFolder#appendBatch}), spread over
+     * {@link PrefStore#getBackupConnections} connections. Whenever all batches
+     * up to some date have been acknowledged, the maximum date of synced
+     * messages is updated such that future syncs will skip.</li>
      * <li>{@link SmsSyncState#CANCELED}: If {@link #cancel()} was called during
      * backup, the backup will stop at the next possible occasion.</li>
      * </ol>
@@ -223,9 +219,9 @@ public class SmsSyncService extends ServiceBase {
             return;
         }
 
-        Cursor items = getItemsToSync();
-        int maxItemsPerSync = PrefStore.getMaxItemsPerSync(this);
-        sItemsToSync = maxItemsPerSync > 0 ? Math.min(items.getCount(), maxItemsPerSync) : items.getCount();
+        int batchSize = PrefStore.getBackupBatchSize(this);
+        SmsScanner scanner = getItemsToSync(batchSize * ConversionPipeline.QUEUE_DEPTH);
+        sItemsToSync = scanner.count();
 
         if (sItemsToSync <= 0) {
             PrefStore.setLastSync(this);
@@ -242,10 +238,23 @@ public class SmsSyncService extends ServiceBase {
         Log.d(Consts.TAG, "Total messages to backup: " + sItemsToSync);
 
         updateState(SmsSyncState.LOGIN);
-        Folder folder = getBackupFolder();
+        List<ImapStore.BackupFolder> folders = getBackupFolders(PrefStore.getBackupConnections(this));
 
         CursorToMessage converter = new CursorToMessage(this, PrefStore.getLoginUsername(this));
+        // Conversion runs ahead on its own thread while batches are uploaded
+        // over all connections.
+        ConversionPipeline pipeline = new ConversionPipeline(converter, scanner, batchSize, sItemsToSync);
+        ParallelUploader uploader = new ParallelUploader(folders, pipeline);
+        long committed = getMaxSyncedDate();
+        WatermarkTracker watermark = new WatermarkTracker(committed);
+        long started = System.currentTimeMillis();
+
+        openCheckpoint(CheckpointJournal.BACKUP);
+        pipeline.start();
+        uploader.start();
+        boolean completed = false;
         try {
+            updateState(SmsSyncState.SYNC);
             while (true) {
                 // Cancel sync if requested by the user.
                 if (sCanceled) {
@@ -255,31 +264,43 @@ public class SmsSyncService extends ServiceBase {
                     updateState(SmsSyncState.CANCELED);
                     break;
                 }
-                updateState(SmsSyncState.SYNC);
-                ConversionResult result = converter.cursorToMessageArray(items, MAX_MSG_PER_REQUEST);
-                List<Message> messages = result.messageList;
+                ConversionResult result = uploader.poll(500);
                 // Stop the sync if all items where uploaded or if the maximum number
                 // of messages per sync was uploaded.
-                if (messages.isEmpty() || sCurrentSyncedItems >= sItemsToSync) {
-                    Log.i(Consts.TAG, "Sync done: " + sCurrentSyncedItems + " items uploaded.");
+                if (uploader.isDone()) {
+                    long elapsed = Math.max(1, System.currentTimeMillis() - started);
+                    Log.i(Consts.TAG, "Sync done: " + sCurrentSyncedItems + " items uploaded in " +
+                            elapsed + "ms over " + folders.size() + " connection(s), " +
+                            (sCurrentSyncedItems * 1000L / elapsed) + " items/s.");
                     PrefStore.setLastSync(SmsSyncService.this);
                     updateState(SmsSyncState.IDLE);
-                    folder.close();
                     break;
+                } else if (result == null) {
+                    continue;
                 }
 
-                Log.d(Consts.TAG, "Sending " + messages.size() + " messages to server.");
-                folder.appendMessages(messages.toArray(new Message[messages.size()]));
-                sCurrentSyncedItems += messages.size();
+                Log.d(Consts.TAG, "Uploaded batch " + result.sequence + " (" +
+                        result.messageList.size() + " messages)");
+                sCurrentSyncedItems += result.messageList.size();
                 updateState(SmsSyncState.SYNC);
-                updateMaxSyncedDate(result.maxDate);
+
+                committed = acknowledge(watermark, result, committed);
                 result = null;
-                messages = null;
             }
+            completed = true;
         } catch (MessagingException e) {
             throw new GeneralErrorException(R.string.err_communication_error, this, e);
+        } catch (InterruptedException e) {
+            throw new GeneralErrorException(R.string.err_communication_error, this, e);
         } finally {
-            items.close();
+            uploader.stop();
+            // batches uploaded before a cancel or failure must not be uploaded again
+            for (ConversionResult uploaded : uploader.drain()) {
+                committed = acknowledge(watermark, uploaded, committed);
+            }
+            pipeline.stop();
+            releaseBackupFolders(folders, completed);
+            closeCheckpoint();
         }
     }
 
@@ -287,19 +308,29 @@ public class SmsSyncService extends ServiceBase {
 
 
     /**
-     * Returns a cursor of SMS messages that have not yet been synced with the
-     * server. This includes all messages with
-     * <code>date &lt; {@link #getMaxSyncedDate()}</code> which are no drafs.
+     * Marks an uploaded batch as acknowledged and records the new max synced
+     * date if all earlier batches are acknowledged as well.
+     *
+     * @return the max synced date recorded so far
      */
-    private Cursor getItemsToSync() {
-        String sortOrder = SmsConsts.DATE;
-        if (PrefStore.getMaxItemsPerSync(this) > 0) {
-          sortOrder += " LIMIT " + PrefStore.getMaxItemsPerSync(this);
+    private long acknowledge(WatermarkTracker watermark, ConversionResult result, long committed) {
+        // only advance to the date below which every batch is acknowledged
+        long maxSynced = watermark.complete(result.sequence, result.maxDate);
+        if (maxSynced > committed) {
+            updateMaxSyncedDate(maxSynced);
+            return maxSynced;
         }
-        return getContentResolver().query(SMS_PROVIDER, null,
-              String.format("%s > ? AND %s <> ?", SmsConsts.DATE, SmsConsts.TYPE),
-              new String[] { String.valueOf(getMaxSyncedDate()), String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT) },
-              sortOrder);
+        return committed;
+    }
+
+    /**
+     * Returns a scanner over SMS messages that have not yet been synced with
+     * the server. This includes all messages with
+     * <code>date &gt; {@link #getMaxSyncedDate()}</code> which are no drafs.
+     */
+    private SmsScanner getItemsToSync(int pageSize) {
+        return new SmsScanner(getContentResolver(), getMaxSyncedDate(),
+                PrefStore.getMaxItemsPerSync(this), pageSize);
     }
 
     /**
@@ -0,0 +1,67 @@
+package com.zegoggles.smssync;
+
+/**
+ * Maps messages, identified by date, address and type, to the UID of their
+ * first copy in the backup folder. Used to find duplicates on the server.
+ *
+ * Each slot is a single long holding the upper 32 bits of the key hash next
+ * to the 32 bit UID (RFC 3501 UIDs fit into 32 bits), the lower bits of the
+ * hash pick the slot. The table is sized once for the expected number of
+ * messages, at most 3/4 full, which takes 11-22 bytes per message (around
+ * 5-10MB for 500k messages). A hit only means the message is probably a copy;
+ * callers have to compare the actual headers of both messages before acting
+ * on it.
+ */
+class UidIndex {
+    /** UIDs start at 1, so 0 marks an empty slot. */
+    private static final long EMPTY = 0;
+    private static final long UID_MASK = 0xffffffffL;
+
+    private final long[] mTable;
+    private final int mMaxSize;
+    private int mSize;
+
+    /**
+     * @param expected the number of messages which will be added
+     */
+    UidIndex(int expected) {
+        int capacity = 16;
+        while (capacity * 3 < expected * 4) {
+            capacity <<= 1;
+        }
+        mTable = new long[capacity];
+        mMaxSize = capacity / 4 * 3;
+    }
+
+    /**
+     * Adds the message with <code>uid</code> unless a message with the same
+     * key hash is in the index already.
+     *
+     * @return the UID of that message, or -1 if it was added
+     */
+    long putIfAbsent(String date, String address, String type, long uid) {
+        if (uid <= 0 || uid > UID_MASK) {
+            throw new IllegalArgumentException("invalid UID " + uid);
+        }
+        long h = MessageIndex.hash(date, address, type);
+        long fingerprint = h & ~UID_MASK;
+
+        long[] table = mTable;
+        int mask = table.length - 1;
+        int i = (int) h & mask;
+        for (; table[i] != EMPTY; i = (i + 1) & mask) {
+            if ((table[i] & ~UID_MASK) == fingerprint) return table[i] & UID_MASK;
+        }
+        if (mSize == mMaxSize) {
+            throw new IllegalStateException("more than the expected messages added");
+        }
+        table[i] = fingerprint | uid;
+        mSize++;
+        return -1;
+    }
+
+    /** Returns the memory used by the table in bytes. */
+    long getMemoryUsage() {
+        return mTable.length * 8L;
+    }
+}
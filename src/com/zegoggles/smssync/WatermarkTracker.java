@@ -0,0 +1,37 @@
+package com.zegoggles.smssync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks acknowledged batches which may complete out of order and yields the
+ * highest date below which every batch has been acknowledged.
+ *
+ * Batches are numbered from 0 in date order, as produced by
+ * {@link ConversionPipeline}, so the committable date is the max date of the
+ * last batch of the completed prefix.
+ */
+class WatermarkTracker {
+    private final Map<Integer, Long> mPending = new HashMap<Integer, Long>();
+    private int mNextSequence;
+    private long mWatermark;
+
+    WatermarkTracker(long initial) {
+        mWatermark = initial;
+    }
+
+    /**
+     * Marks a batch as acknowledged.
+     *
+     * @return the current watermark, which only changes once all earlier
+     *         batches are acknowledged as well
+     */
+    synchronized long complete(int sequence, long maxDate) {
+        mPending.put(sequence, maxDate);
+        while (mPending.containsKey(mNextSequence)) {
+            mWatermark = Math.max(mWatermark, mPending.remove(mNextSequence));
+            mNextSequence++;
+        }
+        return mWatermark;
+    }
+}